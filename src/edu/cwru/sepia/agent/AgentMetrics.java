@@ -0,0 +1,299 @@
+package edu.cwru.sepia.agent;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Timers and counters for the agent's game loop. Each phase of a turn gets a latency histogram, and every
+ * exportInterval episodes the numbers are appended to a CSV file, published over JMX and reset.
+ * <p>
+ * When disabled, {@link #begin()} returns 0 and {@link #end} returns straight away, so the only cost left in
+ * the loop is a branch on a final field.
+ */
+public class AgentMetrics implements AgentMetricsMXBean {
+
+    /**
+     * The parts of a turn and of an episode that are timed.
+     */
+    public enum Phase {
+        TURN, DEATHS, REWARD, EVALUATION, LEARNING, ACTION_SELECTION, ACTION_CREATION, TERMINAL_IO
+    }
+
+    private static final AtomicInteger INSTANCES = new AtomicInteger();
+
+    private final int id = INSTANCES.getAndIncrement();
+    private final boolean enabled;
+    private final int exportInterval;
+    private final Path csvFile;
+    //Name this instance is registered under with JMX, null when it is not
+    private final ObjectName objectName;
+
+    private final LatencyHistogram[] histograms = new LatencyHistogram[Phase.values().length];
+    //How far past its deadline each turn that missed it ran, 0 when it only had to cut evaluation short
+    private final LatencyHistogram deadlineOverrun = new LatencyHistogram();
+
+    //Counts since the last export
+    private long episodes;
+    private long turns;
+    private long qEvaluations;
+    private long intervalStart;
+
+    //Totals and the values of the last interval, read by JMX from another thread
+    private volatile long totalEpisodes;
+    private volatile double episodesPerSecond;
+    private volatile double turnsPerEpisode;
+    private volatile double qEvaluationsPerTurn;
+    private volatile Map<String, Double> phaseMeanMicros = Collections.emptyMap();
+    private volatile Map<String, Double> phaseP99Micros = Collections.emptyMap();
+    private volatile double deadlineMissesPerTurn;
+    private volatile double deadlineOverrunP99Micros;
+
+    /**
+     * @param enabled        Whether to record anything at all
+     * @param exportInterval Episodes between exports
+     * @param csvFile        File the rows are appended to, or null for JMX only. Several agents can share one.
+     */
+    public AgentMetrics(boolean enabled, int exportInterval, Path csvFile) {
+        this.enabled = enabled;
+        this.exportInterval = Math.max(1, exportInterval);
+        this.csvFile = csvFile;
+        for (int i = 0; i < histograms.length; i++) {
+            histograms[i] = new LatencyHistogram();
+        }
+        intervalStart = System.nanoTime();
+
+        ObjectName name = null;
+        if (enabled) {
+            try {
+                name = new ObjectName("edu.cwru.sepia.agent:type=AgentMetrics,id=" + id);
+                ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+            } catch (JMException ex) {
+                System.err.println("Failed to register agent metrics with JMX. Reason: " + ex.getMessage());
+                name = null;
+            }
+        }
+        objectName = name;
+    }
+
+    /**
+     * Unregisters from JMX, so the platform MBean server no longer keeps this instance alive. Safe to call
+     * more than once.
+     */
+    public void close() {
+        if (objectName == null) {
+            return;
+        }
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            if (server.isRegistered(objectName)) {
+                server.unregisterMBean(objectName);
+            }
+        } catch (JMException ex) {
+            System.err.println("Failed to unregister agent metrics from JMX. Reason: " + ex.getMessage());
+        }
+    }
+
+    /**
+     * A disabled instance, for agents that don't want metrics.
+     */
+    public static AgentMetrics disabled() {
+        return new AgentMetrics(false, 1, null);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @return The start time to pass to {@link #end}, or 0 when disabled
+     */
+    public long begin() {
+        return enabled ? System.nanoTime() : 0L;
+    }
+
+    /**
+     * Records the time since begin against a phase.
+     *
+     * @param phase Phase that was timed
+     * @param start Value returned by begin
+     * @return The current time, so the next phase can start from it without another clock read
+     */
+    public long end(Phase phase, long start) {
+        if (!enabled) {
+            return 0L;
+        }
+        long now = System.nanoTime();
+        histograms[phase.ordinal()].record(now - start);
+        return now;
+    }
+
+    public void countTurn() {
+        if (enabled) {
+            turns++;
+        }
+    }
+
+    public void countQEvaluations(int evaluations) {
+        if (enabled) {
+            qEvaluations += evaluations;
+        }
+    }
+
+    /**
+     * Counts a turn that did not get everything done before its deadline.
+     *
+     * @param overrunNanos How long past the deadline the turn finished, 0 if it stopped in time
+     */
+    public void recordDeadlineMiss(long overrunNanos) {
+        if (enabled) {
+            deadlineOverrun.record(overrunNanos);
+        }
+    }
+
+    /**
+     * Counts a finished episode and exports if the interval is up.
+     */
+    public void countEpisode() {
+        if (!enabled) {
+            return;
+        }
+        episodes++;
+        totalEpisodes++;
+        if (episodes >= exportInterval) {
+            export();
+        }
+    }
+
+    /**
+     * @return Histogram of a phase, for reporting
+     */
+    public LatencyHistogram getHistogram(Phase phase) {
+        return histograms[phase.ordinal()];
+    }
+
+    /**
+     * @return Overrun of every turn that missed its deadline, its count is the number of misses
+     */
+    public LatencyHistogram getDeadlineOverrun() {
+        return deadlineOverrun;
+    }
+
+    private void export() {
+        long now = System.nanoTime();
+        episodesPerSecond = episodes / ((now - intervalStart) / 1e9);
+        turnsPerEpisode = (double) turns / episodes;
+        qEvaluationsPerTurn = turns == 0 ? 0.0 : (double) qEvaluations / turns;
+
+        Map<String, Double> means = new LinkedHashMap<>();
+        Map<String, Double> p99s = new LinkedHashMap<>();
+        for (Phase phase : Phase.values()) {
+            LatencyHistogram histogram = histograms[phase.ordinal()];
+            means.put(phase.name(), histogram.getMean() / 1000.0);
+            p99s.put(phase.name(), histogram.getPercentile(99) / 1000.0);
+        }
+        phaseMeanMicros = Collections.unmodifiableMap(means);
+        phaseP99Micros = Collections.unmodifiableMap(p99s);
+        deadlineMissesPerTurn = turns == 0 ? 0.0 : (double) deadlineOverrun.getCount() / turns;
+        deadlineOverrunP99Micros = deadlineOverrun.getPercentile(99) / 1000.0;
+
+        if (csvFile != null) {
+            writeCsvRow();
+        }
+
+        episodes = 0;
+        turns = 0;
+        qEvaluations = 0;
+        for (LatencyHistogram histogram : histograms) {
+            histogram.reset();
+        }
+        deadlineOverrun.reset();
+        intervalStart = System.nanoTime();
+    }
+
+    //Synchronized on the class since trainer workers may all append to the same file
+    private void writeCsvRow() {
+        synchronized (AgentMetrics.class) {
+            appendCsvRow();
+        }
+    }
+
+    private void appendCsvRow() {
+        try {
+            boolean newFile = !Files.exists(csvFile);
+            if (newFile) {
+                Files.createDirectories(csvFile.toAbsolutePath().getParent());
+            }
+            try (PrintWriter writer = new PrintWriter(new BufferedWriter(new FileWriter(csvFile.toFile(), true)))) {
+                if (newFile) {
+                    StringBuilder header = new StringBuilder("time_ms,agent,episodes,episodes_per_sec,turns_per_episode,q_evals_per_turn");
+                    for (Phase phase : Phase.values()) {
+                        String name = phase.name().toLowerCase();
+                        header.append(',').append(name).append("_mean_us,").append(name).append("_p50_us,").append(name).append("_p99_us");
+                    }
+                    header.append(",deadline_misses_per_turn,deadline_overrun_p99_us");
+                    writer.println(header);
+                }
+                StringBuilder row = new StringBuilder();
+                row.append(System.currentTimeMillis()).append(',').append(id).append(',').append(totalEpisodes).append(',')
+                        .append(String.format("%.2f,%.2f,%.2f", episodesPerSecond, turnsPerEpisode, qEvaluationsPerTurn));
+                for (LatencyHistogram histogram : histograms) {
+                    row.append(String.format(",%.2f,%.2f,%.2f", histogram.getMean() / 1000.0,
+                            histogram.getPercentile(50) / 1000.0, histogram.getPercentile(99) / 1000.0));
+                }
+                row.append(String.format(",%.4f,%.2f", deadlineMissesPerTurn, deadlineOverrunP99Micros));
+                writer.println(row);
+            }
+        } catch (IOException ex) {
+            System.err.println("Failed to write metrics. Reason: " + ex.getMessage());
+        }
+    }
+
+    @Override
+    public long getEpisodes() {
+        return totalEpisodes;
+    }
+
+    @Override
+    public double getEpisodesPerSecond() {
+        return episodesPerSecond;
+    }
+
+    @Override
+    public double getTurnsPerEpisode() {
+        return turnsPerEpisode;
+    }
+
+    @Override
+    public double getQEvaluationsPerTurn() {
+        return qEvaluationsPerTurn;
+    }
+
+    @Override
+    public Map<String, Double> getPhaseMeanMicros() {
+        return phaseMeanMicros;
+    }
+
+    @Override
+    public Map<String, Double> getPhaseP99Micros() {
+        return phaseP99Micros;
+    }
+
+    @Override
+    public double getDeadlineMissesPerTurn() {
+        return deadlineMissesPerTurn;
+    }
+
+    @Override
+    public double getDeadlineOverrunP99Micros() {
+        return deadlineOverrunP99Micros;
+    }
+}
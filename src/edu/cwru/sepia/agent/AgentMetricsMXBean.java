@@ -0,0 +1,37 @@
+package edu.cwru.sepia.agent;
+
+import java.util.Map;
+
+/**
+ * JMX view of {@link AgentMetrics}. Values are those of the last export interval.
+ */
+public interface AgentMetricsMXBean {
+
+    long getEpisodes();
+
+    double getEpisodesPerSecond();
+
+    double getTurnsPerEpisode();
+
+    double getQEvaluationsPerTurn();
+
+    /**
+     * @return Mean time per call of each phase, in microseconds
+     */
+    Map<String, Double> getPhaseMeanMicros();
+
+    /**
+     * @return 99th percentile time per call of each phase, in microseconds
+     */
+    Map<String, Double> getPhaseP99Micros();
+
+    /**
+     * @return Fraction of turns that missed the turnDeadlineUs deadline
+     */
+    double getDeadlineMissesPerTurn();
+
+    /**
+     * @return 99th percentile of how far past the deadline the missed turns ran, in microseconds
+     */
+    double getDeadlineOverrunP99Micros();
+}
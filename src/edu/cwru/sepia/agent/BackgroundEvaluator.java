@@ -0,0 +1,98 @@
+package edu.cwru.sepia.agent;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Plays the test episodes of an evaluation block on a thread pool, so the agent being trained never stops to
+ * test. An agent hands over a copy of its weights at each evaluation point and carries on learning, see
+ * {@link RLAgent#evaluateInBackground}. The copy is played by a separate agent that only tests, the same way
+ * the agent itself would have played the block's test episodes.
+ * <p>
+ * One evaluator can serve several agents. Every pool thread keeps its own environment.
+ */
+public class BackgroundEvaluator {
+
+    /**
+     * Test episodes per evaluation block, the last 5 of every 15 on the in-line schedule.
+     */
+    public static final int TEST_EPISODES = 5;
+
+    private final ExecutorService pool;
+    private final ThreadLocal<EpisodeDriver> drivers;
+
+    /**
+     * @param drivers Creates the environment of each pool thread
+     * @param threads Evaluations played at once
+     */
+    public BackgroundEvaluator(Supplier<EpisodeDriver> drivers, int threads) {
+        this.drivers = ThreadLocal.withInitial(drivers);
+        this.pool = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "background-evaluator");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Queues the test episodes of one block.
+     *
+     * @param weights Weights to test, copied before returning
+     * @param seed    Seed of the evaluating agent's exploration
+     * @param options name=value options of the trained agent, so the tests explore and score the same way
+     * @return The reward of each test episode, once they have been played
+     */
+    public Future<RunningStats> submit(double[] weights, long seed, String... options) {
+        return submit(weights, null, seed, options);
+    }
+
+    /**
+     * Same as {@link #submit(double[], long, String...)} for a run with hashed features.
+     *
+     * @param hashed Hashed features to test, copied before returning, or null
+     */
+    public Future<RunningStats> submit(double[] weights, HashedFeatures hashed, long seed, String... options) {
+        double[] snapshot = weights.clone();
+        HashedFeatures hashedSnapshot = hashed == null ? null : hashed.copy();
+        // Evaluators announcing every episode or exporting metrics would mix with the trained agent's
+        List<String> evaluatorOptions = new ArrayList<>(Arrays.asList(options));
+        evaluatorOptions.add("logLevel=WARN");
+        evaluatorOptions.add("metrics=false");
+        String[] optionArray = evaluatorOptions.toArray(new String[0]);
+        return pool.submit(() -> evaluate(snapshot, hashedSnapshot, seed, optionArray));
+    }
+
+    private RunningStats evaluate(double[] weights, HashedFeatures hashed, long seed, String[] options) {
+        RLAgent agent = new RLAgent(0, TEST_EPISODES, weights, hashed, WeightUpdater.HOGWILD, seed, options);
+        agent.testOnly = true;
+        try {
+            EpisodeDriver driver = drivers.get();
+            for (int episode = 0; episode < TEST_EPISODES; episode++) {
+                driver.runEpisode(agent);
+            }
+        } finally {
+            agent.close();
+        }
+        return agent.testEpisodeRewards;
+    }
+
+    /**
+     * Waits for queued evaluations and stops the pool.
+     */
+    public void close() {
+        pool.shutdown();
+        try {
+            if (!pool.awaitTermination(1, TimeUnit.MINUTES)) {
+                System.err.println("Timed out waiting for background evaluations.");
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,222 @@
+package edu.cwru.sepia.agent;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The starting position of a battle, read from a SEPIA map file such as data/rl_10fv10f.xml. Only what the
+ * combat simulator needs is kept: the map size and, for every unit, its owner, position, health and the combat
+ * stats of its template. Instances are never modified, so one can be shared by any number of simulators.
+ * <p>
+ * {@link #cached} keeps every file it parsed for the life of the JVM, so runs and sweeps that keep coming
+ * back to the same maps only parse each of them once.
+ */
+public class BattleScenario {
+
+    //Parsed files by absolute path, maps and configurations alike
+    private static final Map<Path, CachedFile> CACHE = new ConcurrentHashMap<>();
+
+    public final int xExtent;
+    public final int yExtent;
+
+    //Per unit, in the order they appear in the map file
+    final int[] unitIds;
+    final int[] players;
+    final int[] xPositions;
+    final int[] yPositions;
+    final int[] hps;
+    final String[] typeNames;
+    final int[] basicAttacks;
+    final int[] piercingAttacks;
+    final int[] armors;
+
+    //The state every episode starts from, copied as a whole by the simulator's reset
+    //Unit ID -> slot, -1 for unknown IDs
+    final int[] slotOfUnit;
+    //Map cell (y * xExtent + x) -> slot + 1 of the unit standing there, 0 when empty
+    final int[] initialOccupant;
+    //Units per player, for players 0 and 1
+    final int[] initialAliveCount = new int[2];
+
+    private BattleScenario(int xExtent, int yExtent, List<int[]> units, List<String> names) {
+        this.xExtent = xExtent;
+        this.yExtent = yExtent;
+        int count = units.size();
+        unitIds = new int[count];
+        players = new int[count];
+        xPositions = new int[count];
+        yPositions = new int[count];
+        hps = new int[count];
+        basicAttacks = new int[count];
+        piercingAttacks = new int[count];
+        armors = new int[count];
+        typeNames = names.toArray(new String[count]);
+        for (int i = 0; i < count; i++) {
+            int[] unit = units.get(i);
+            unitIds[i] = unit[0];
+            players[i] = unit[1];
+            xPositions[i] = unit[2];
+            yPositions[i] = unit[3];
+            hps[i] = unit[4];
+            basicAttacks[i] = unit[5];
+            piercingAttacks[i] = unit[6];
+            armors[i] = unit[7];
+        }
+
+        int maxUnitId = 0;
+        for (int unitId : unitIds) {
+            maxUnitId = Math.max(maxUnitId, unitId);
+        }
+        slotOfUnit = new int[maxUnitId + 1];
+        Arrays.fill(slotOfUnit, -1);
+        initialOccupant = new int[xExtent * yExtent];
+        for (int slot = 0; slot < count; slot++) {
+            slotOfUnit[unitIds[slot]] = slot;
+            initialOccupant[yPositions[slot] * xExtent + xPositions[slot]] = slot + 1;
+            initialAliveCount[players[slot]]++;
+        }
+    }
+
+    public int getUnitCount() {
+        return unitIds.length;
+    }
+
+    /**
+     * Loads a scenario from either a map file or a SEPIA configuration file, in which case the map the
+     * configuration points to is loaded.
+     *
+     * @param path Map or configuration XML
+     * @return The parsed scenario
+     */
+    public static BattleScenario load(Path path) throws IOException {
+        Element root = parse(path).getDocumentElement();
+        Path map = mapOf(path, root);
+        return map != null ? load(map) : read(path, root);
+    }
+
+    /**
+     * Like {@link #load}, but each file is only parsed the first time it is asked for. It is parsed again if it
+     * changed on disk since. Safe to call from any thread; two threads asking for a new file at once may both
+     * parse it, and either copy is then kept.
+     *
+     * @param path Map or configuration XML
+     * @return The scenario, shared with every other caller
+     */
+    public static BattleScenario cached(Path path) throws IOException {
+        Path key = path.toAbsolutePath().normalize();
+        long modified = Files.getLastModifiedTime(key).toMillis();
+        CachedFile cached = CACHE.get(key);
+        if (cached == null || cached.modified != modified) {
+            Element root = parse(key).getDocumentElement();
+            Path map = mapOf(key, root);
+            cached = new CachedFile(modified, map == null ? read(key, root) : null, map);
+            CACHE.put(key, cached);
+        }
+        // A configuration's map is cached under its own path, and checked for changes on its own
+        return cached.scenario != null ? cached.scenario : cached(cached.map);
+    }
+
+    //A parsed file: either the scenario of a map, or the map a configuration points to
+    private static final class CachedFile {
+        final long modified;
+        final BattleScenario scenario;
+        final Path map;
+
+        CachedFile(long modified, BattleScenario scenario, Path map) {
+            this.modified = modified;
+            this.scenario = scenario;
+            this.map = map;
+        }
+    }
+
+    /**
+     * @return The map a configuration file points to, or null if the file is a map
+     */
+    private static Path mapOf(Path path, Element root) throws IOException {
+        if (!root.getNodeName().equals("Configuration")) {
+            return null;
+        }
+        String map = childText(root, "Map");
+        if (map == null) {
+            throw new IOException(path + " does not name a map");
+        }
+        // Map paths in the configurations are relative to the working directory, like in SEPIA
+        return Paths.get(map);
+    }
+
+    private static BattleScenario read(Path path, Element root) throws IOException {
+        int xExtent = Integer.parseInt(root.getAttribute("xExtent"));
+        int yExtent = Integer.parseInt(root.getAttribute("yExtent"));
+        List<int[]> units = new ArrayList<>();
+        List<String> names = new ArrayList<>();
+        for (Element player : children(root, "player")) {
+            int playerId = Integer.parseInt(childText(player, "ID"));
+
+            // Templates are defined per player
+            Map<Integer, Element> templates = new HashMap<>();
+            for (Element template : children(player, "template")) {
+                templates.put(Integer.parseInt(childText(template, "ID")), template);
+            }
+
+            for (Element unit : children(player, "unit")) {
+                Element template = templates.get(Integer.parseInt(childText(unit, "templateID")));
+                if (template == null) {
+                    throw new IOException("Unit " + childText(unit, "ID") + " in " + path + " has an unknown template");
+                }
+                units.add(new int[]{
+                        Integer.parseInt(childText(unit, "ID")),
+                        playerId,
+                        Integer.parseInt(childText(unit, "xPosition")),
+                        Integer.parseInt(childText(unit, "yPosition")),
+                        Integer.parseInt(childText(unit, "currentHealth")),
+                        Integer.parseInt(childText(template, "baseAttack")),
+                        Integer.parseInt(childText(template, "piercingAttack")),
+                        Integer.parseInt(childText(template, "armor"))
+                });
+                names.add(childText(template, "name"));
+            }
+        }
+        return new BattleScenario(xExtent, yExtent, units, names);
+    }
+
+    private static Document parse(Path path) throws IOException {
+        try {
+            return DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(path.toFile());
+        } catch (ParserConfigurationException | SAXException ex) {
+            throw new IOException("Failed to parse " + path + ". Reason: " + ex.getMessage(), ex);
+        }
+    }
+
+    private static List<Element> children(Element parent, String name) {
+        List<Element> children = new ArrayList<>();
+        NodeList nodes = parent.getChildNodes();
+        for (int i = 0; i < nodes.getLength(); i++) {
+            Node node = nodes.item(i);
+            if (node.getNodeType() == Node.ELEMENT_NODE && node.getNodeName().equals(name)) {
+                children.add((Element) node);
+            }
+        }
+        return children;
+    }
+
+    private static String childText(Element parent, String name) {
+        List<Element> children = children(parent, name);
+        return children.isEmpty() ? null : children.get(0).getTextContent().trim();
+    }
+}
@@ -0,0 +1,55 @@
+package edu.cwru.sepia.agent;
+
+import java.util.List;
+
+/**
+ * Everything the agent reads about the battle on a given turn. SEPIA games are adapted to this by
+ * {@link SepiaBattleView} and the headless {@link CombatSimulator} implements it directly, so the same agent
+ * logic runs against either.
+ */
+public interface BattleView {
+
+    int getTurnNumber();
+
+    /**
+     * @return IDs of the living units of a player
+     */
+    List<Integer> getUnitIds(int player);
+
+    /**
+     * @return IDs of all living units
+     */
+    List<Integer> getAllUnitIds();
+
+    /**
+     * @return Name of the unit's template, for example "Footman"
+     */
+    String getUnitTypeName(int unitId);
+
+    int getXPosition(int unitId);
+
+    int getYPosition(int unitId);
+
+    int getHP(int unitId);
+
+    /**
+     * Copies the living units of a player into a snapshot. Views that can read all of a unit's fields in one
+     * lookup override this.
+     */
+    default void copyUnits(int player, UnitSnapshot snapshot) {
+        for (int unitId : getUnitIds(player)) {
+            snapshot.add(unitId, player, getXPosition(unitId), getYPosition(unitId), getHP(unitId), getUnitTypeName(unitId));
+        }
+    }
+
+    /**
+     * Reports what happened on a turn to the summary. Deaths must be reported before damage, since damage to
+     * units that died is counted differently, followed by the commands our player issued and the actions of
+     * our units that completed or failed.
+     *
+     * @param turn      The turn to report, normally the previous one
+     * @param playernum Our player number
+     * @param summary   Summary to record the events in
+     */
+    void reportEvents(int turn, int playernum, CombatEventSummary summary);
+}
@@ -0,0 +1,747 @@
+package edu.cwru.sepia.agent;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * End to end benchmark of the agent on the headless simulator. Every scenario is played for a fixed number of
+ * fixed-seed episodes after a warm up, so two runs on the same machine do the same work.
+ * <p>
+ * Reported per scenario: decisions (orders given to a footman) per second, episodes per second, p50 and p99 of
+ * the agent's turn, which is everything middleStep does besides building SEPIA actions, and the heap allocated
+ * by the game thread per second and per decision, and the share of turns that missed their deadline (the
+ * agent's turnDeadlineUs, or latencyBudgetUs for the inference agent).
+ * <p>
+ * Usage: BenchmarkSuite [name=value ...]
+ * <ul>
+ * <li>scenarios: comma separated map or config files, or NxM for a generated battle of N against M footmen,
+ * optionally NxM:layout. Defaults to the two assignment maps, 50x50 and 200x200.</li>
+ * <li>episodes, warmup: measured and warm up episodes per scenario, 50 and 20 by default.</li>
+ * <li>seed: seed of the weights, the agent and the simulator, 12345 by default.</li>
+ * <li>scenarioDir: where generated scenarios are written, bench_scenarios by default.</li>
+ * <li>agent: learning (the default) or inference for the frozen {@link InferenceAgent}, which plays the weights
+ * in checkpoint=path if given and the seeded initial weights otherwise, with latencyBudgetUs=500.</li>
+ * <li>featureCosts: true to also time each built in feature and the fused read of a pair's units, see
+ * {@link #reportFeatureCosts}.</li>
+ * <li>startup: true to also time what starting a run and an episode costs, see {@link #reportStartup}.</li>
+ * <li>boxedQ: true to also compare the primitive Q-function with the boxed one it replaced on generated 5 against
+ * 5 and 10 against 10 battles, see {@link #reportBoxedQ}.</li>
+ * <li>scaling: true to also time a turn's Q-values batched in a {@link QMatrix} against one pair at a time on
+ * generated 10 against 10, 50 against 50 and 200 against 200 battles, see {@link #reportScaling}.</li>
+ * <li>metricsOverhead: true to also time the agent's turn loop without metrics calls, with metrics disabled and
+ * with them enabled on a generated 10 against 10 battle, see {@link #reportMetricsOverhead}.</li>
+ * </ul>
+ * Any other option is passed on to the agent, for example candidateEnemies=8, or parallelThreshold=2147483647
+ * against parallelism=4 parallelThreshold=0 to compare one thread with the parallel evaluation.
+ */
+public class BenchmarkSuite {
+
+    private static final String DEFAULT_SCENARIOS = "data/rl_5fv5f.xml,data/rl_10fv10f.xml,50x50,200x200";
+
+    /**
+     * Measurements of one scenario.
+     */
+    public static class Result {
+        public final String scenario;
+        public final int episodes;
+        public final long decisions;
+        public final long turns;
+        public final long nanos;
+        public final long p50Nanos;
+        public final long p99Nanos;
+        //-1 when the JVM can't measure allocations per thread
+        public final long allocatedBytes;
+        public final long deadlineMisses;
+
+        Result(String scenario, int episodes, long decisions, long turns, long nanos, long p50Nanos, long p99Nanos, long allocatedBytes,
+               long deadlineMisses) {
+            this.scenario = scenario;
+            this.episodes = episodes;
+            this.decisions = decisions;
+            this.turns = turns;
+            this.nanos = nanos;
+            this.p50Nanos = p50Nanos;
+            this.p99Nanos = p99Nanos;
+            this.allocatedBytes = allocatedBytes;
+            this.deadlineMisses = deadlineMisses;
+        }
+
+        public double getDecisionsPerSecond() {
+            return decisions / (nanos / 1e9);
+        }
+
+        public double getEpisodesPerSecond() {
+            return episodes / (nanos / 1e9);
+        }
+
+        public double getAllocatedMegabytesPerSecond() {
+            return allocatedBytes < 0 ? Double.NaN : allocatedBytes / 1e6 / (nanos / 1e9);
+        }
+
+        public double getAllocatedBytesPerDecision() {
+            return allocatedBytes < 0 || decisions == 0 ? Double.NaN : (double) allocatedBytes / decisions;
+        }
+
+        public double getDeadlineMissPercent() {
+            return turns == 0 ? 0.0 : 100.0 * deadlineMisses / turns;
+        }
+    }
+
+    private final int episodes;
+    private final int warmup;
+    private final long seed;
+    private final String[] agentOptions;
+    private final int featureCount;
+
+    //Keeps the feature timing loops from being optimized away
+    private static volatile double blackhole;
+
+    /**
+     * @param episodes     Measured episodes per scenario
+     * @param warmup       Episodes played first so the JIT has compiled the hot paths
+     * @param seed         Seed of the weights, the agent and the simulator
+     * @param agentOptions name=value options for the agent
+     */
+    public BenchmarkSuite(int episodes, int warmup, long seed, String... agentOptions) {
+        this.episodes = episodes;
+        this.warmup = warmup;
+        this.seed = seed;
+
+        // Turn timing comes from the agent's own metrics, which never export during a benchmark
+        List<String> options = new ArrayList<>();
+        for (String option : agentOptions) {
+            options.add(option);
+        }
+        options.add("metrics=true");
+        options.add("metricsInterval=" + Integer.MAX_VALUE);
+        options.add("logLevel=WARN");
+        this.agentOptions = options.toArray(new String[0]);
+        this.featureCount = FeaturePipeline.fromArguments(agentOptions).size();
+    }
+
+    /**
+     * Plays the warm up and measured episodes of one scenario.
+     *
+     * @param name     Name to report the scenario under
+     * @param scenario The battle to play
+     * @return What was measured
+     */
+    public Result run(String name, BattleScenario scenario) {
+        RLAgent agent = new RLAgent(0, warmup + episodes, ParallelTrainer.initialWeights(seed, featureCount), WeightUpdater.HOGWILD, seed, agentOptions);
+        CombatSimulator simulator = new CombatSimulator(scenario, seed, CombatSimulator.DEFAULT_TURN_LIMIT);
+        try {
+            for (int episode = 0; episode < warmup; episode++) {
+                simulator.runEpisode(agent);
+            }
+            for (AgentMetrics.Phase phase : AgentMetrics.Phase.values()) {
+                agent.metrics.getHistogram(phase).reset();
+            }
+            agent.metrics.getDeadlineOverrun().reset();
+
+            long decisions = simulator.getIssuedOrderCount();
+            long allocated = allocatedBytes();
+            long start = System.nanoTime();
+            for (int episode = 0; episode < episodes; episode++) {
+                simulator.runEpisode(agent);
+            }
+            long nanos = System.nanoTime() - start;
+            long allocatedAfter = allocatedBytes();
+
+            LatencyHistogram turns = agent.metrics.getHistogram(AgentMetrics.Phase.TURN);
+            return new Result(name, episodes, simulator.getIssuedOrderCount() - decisions, turns.getCount(), nanos,
+                    turns.getPercentile(50), turns.getPercentile(99), allocated < 0 ? -1 : allocatedAfter - allocated,
+                    agent.metrics.getDeadlineOverrun().getCount());
+        } finally {
+            agent.close();
+        }
+    }
+
+    /**
+     * Plays the warm up and measured episodes of one scenario with a frozen policy.
+     *
+     * @param name               Name to report the scenario under
+     * @param scenario           The battle to play
+     * @param weights            Weights to play
+     * @param featureNames       Feature of each weight
+     * @param hashed             Hashed features to play, or null
+     * @param latencyBudgetNanos Time the agent may take per turn
+     * @return What was measured
+     */
+    public Result runInference(String name, BattleScenario scenario, double[] weights, String[] featureNames, HashedFeatures hashed,
+                               long latencyBudgetNanos) {
+        InferenceAgent agent = new InferenceAgent(0, weights, new FeaturePipeline(String.join(",", featureNames), ""), hashed, latencyBudgetNanos);
+        CombatSimulator simulator = new CombatSimulator(scenario, seed, CombatSimulator.DEFAULT_TURN_LIMIT);
+        for (int episode = 0; episode < warmup; episode++) {
+            simulator.runEpisode(agent);
+        }
+        agent.getTurnLatency().reset();
+        long missesBefore = agent.getTurnsOverBudget();
+
+        long decisions = simulator.getIssuedOrderCount();
+        long allocated = allocatedBytes();
+        long start = System.nanoTime();
+        for (int episode = 0; episode < episodes; episode++) {
+            simulator.runEpisode(agent);
+        }
+        long nanos = System.nanoTime() - start;
+        long allocatedAfter = allocatedBytes();
+
+        LatencyHistogram turns = agent.getTurnLatency();
+        return new Result(name, episodes, simulator.getIssuedOrderCount() - decisions, turns.getCount(), nanos,
+                turns.getPercentile(50), turns.getPercentile(99), allocated < 0 ? -1 : allocatedAfter - allocated,
+                agent.getTurnsOverBudget() - missesBefore);
+    }
+
+    /**
+     * Times feature extraction on the opening position of a scenario, in nanoseconds per (footman, enemy) pair.
+     * The context row is the fused read of a pair's units, paid once per pair whatever the feature set. Every
+     * other row is one built in feature on its own, reading from contexts that are already filled.
+     *
+     * @param name     Name to report the scenario under
+     * @param scenario The battle to time
+     * @param out      Where to print the table
+     */
+    public void reportFeatureCosts(String name, BattleScenario scenario, PrintStream out) {
+        CombatSimulator simulator = new CombatSimulator(scenario, seed, CombatSimulator.DEFAULT_TURN_LIMIT);
+        simulator.reset();
+        List<Integer> ours = simulator.getUnitIds(0);
+        List<Integer> theirs = simulator.getUnitIds(RLAgent.ENEMY_PLAYERNUM);
+        int maxUnitId = 0;
+        for (int unitId : simulator.getAllUnitIds()) {
+            maxUnitId = Math.max(maxUnitId, unitId);
+        }
+        CombatEventSummary events = new CombatEventSummary(maxUnitId);
+
+        FeatureContext[] contexts = new FeatureContext[ours.size() * theirs.size()];
+        for (int i = 0; i < contexts.length; i++) {
+            contexts[i] = new FeatureContext();
+            contexts[i].load(simulator, events, ours.get(i / theirs.size()), theirs.get(i % theirs.size()));
+        }
+        FeaturePipeline features = FeaturePipeline.allFeatures();
+        int rounds = Math.max(1, 1_000_000 / contexts.length);
+        FeatureContext context = new FeatureContext();
+
+        // The first passes warm up the JIT, the last one is reported
+        long[] nanos = new long[features.size() + 1];
+        double sum = 0.0;
+        for (int pass = 0; pass < 5; pass++) {
+            long start = System.nanoTime();
+            for (int round = 0; round < rounds; round++) {
+                context.invalidate();
+                for (int attackerId : ours) {
+                    for (int defenderId : theirs) {
+                        context.load(simulator, events, attackerId, defenderId);
+                        sum += context.manhattanDistance;
+                    }
+                }
+            }
+            nanos[0] = System.nanoTime() - start;
+            for (int f = 0; f < features.size(); f++) {
+                FeatureExtractor extractor = features.getExtractor(f);
+                start = System.nanoTime();
+                for (int round = 0; round < rounds; round++) {
+                    for (FeatureContext pair : contexts) {
+                        sum += extractor.extract(pair);
+                    }
+                }
+                nanos[f + 1] = System.nanoTime() - start;
+            }
+        }
+        blackhole = sum;
+
+        double pairs = (double) rounds * contexts.length;
+        out.println("Feature costs on " + name + ", " + contexts.length + " pairs");
+        out.println("Feature                     ns/pair");
+        out.println("--------------------------  -------");
+        out.println(String.format("%-28s%.2f", "(context)", nanos[0] / pairs));
+        for (int f = 0; f < features.size(); f++) {
+            out.println(String.format("%-28s%.2f", features.getNames()[f], nanos[f + 1] / pairs));
+        }
+    }
+
+    /**
+     * Times, each averaged over many repetitions once the JIT is warm: parsing the scenario file, looking it up
+     * in the per JVM cache, creating a simulator, resetting it to the start of an episode and the agent's own
+     * start of episode, which sorts out the footmen.
+     *
+     * @param file Map or config file the scenario is read from
+     */
+    public void reportStartup(String name, Path file, PrintStream out) throws IOException {
+        BattleScenario scenario = BattleScenario.cached(file);
+        RLAgent agent = new RLAgent(0, warmup + episodes, ParallelTrainer.initialWeights(seed, featureCount), WeightUpdater.HOGWILD, seed, agentOptions);
+        CombatSimulator simulator = new CombatSimulator(scenario, seed, CombatSimulator.DEFAULT_TURN_LIMIT);
+        int[] rounds = {20, 10_000, 1_000, 10_000, 1_000};
+        long[] nanos = new long[rounds.length];
+        long sum = 0;
+        try {
+            // The first passes warm up the JIT, the last one is reported
+            for (int pass = 0; pass < 3; pass++) {
+                long start = System.nanoTime();
+                for (int round = 0; round < rounds[0]; round++) {
+                    sum += BattleScenario.load(file).getUnitCount();
+                }
+                nanos[0] = System.nanoTime() - start;
+                start = System.nanoTime();
+                for (int round = 0; round < rounds[1]; round++) {
+                    sum += BattleScenario.cached(file).getUnitCount();
+                }
+                nanos[1] = System.nanoTime() - start;
+                start = System.nanoTime();
+                for (int round = 0; round < rounds[2]; round++) {
+                    sum += new CombatSimulator(scenario, seed + round, CombatSimulator.DEFAULT_TURN_LIMIT).getTurnNumber();
+                }
+                nanos[2] = System.nanoTime() - start;
+                start = System.nanoTime();
+                for (int round = 0; round < rounds[3]; round++) {
+                    simulator.reset();
+                }
+                nanos[3] = System.nanoTime() - start;
+                start = System.nanoTime();
+                for (int round = 0; round < rounds[4]; round++) {
+                    agent.startEpisode(simulator);
+                }
+                nanos[4] = System.nanoTime() - start;
+            }
+        } finally {
+            agent.close();
+        }
+        blackhole = sum;
+
+        out.println("Startup costs on " + name + ", " + scenario.getUnitCount() + " units");
+        out.println("Step                        us");
+        out.println("--------------------------  ---------");
+        String[] steps = {"Parse file", "Cached lookup", "New simulator", "Episode reset", "Agent episode start"};
+        for (int i = 0; i < steps.length; i++) {
+            out.println(String.format("%-28s%.2f", steps[i], nanos[i] / 1000.0 / rounds[i]));
+        }
+    }
+
+    /**
+     * Times the Q-value of every (footman, enemy) pair of a turn two ways: the primitive path the agent uses, a
+     * {@link FeaturePipeline} writing into a reused double[] cached in a {@link FeatureCache}, and the boxed path
+     * it replaced, which built a Double[] per pair, found last turn's attacks by scanning a list, cached the
+     * vector in a HashMap and summed into a boxed Double. Both use the default features, the same weights and
+     * one attack per enemy, and must agree on the Q-values. Reports the best of five passes and the bytes the
+     * last pass allocated.
+     */
+    public void reportBoxedQ(String name, BattleScenario scenario, PrintStream out) {
+        CombatSimulator simulator = new CombatSimulator(scenario, seed, CombatSimulator.DEFAULT_TURN_LIMIT);
+        simulator.reset();
+        List<Integer> ours = simulator.getUnitIds(0);
+        List<Integer> theirs = simulator.getUnitIds(RLAgent.ENEMY_PLAYERNUM);
+        int maxUnitId = 0;
+        for (int unitId : simulator.getAllUnitIds()) {
+            maxUnitId = Math.max(maxUnitId, unitId);
+        }
+
+        // Every enemy hit one of our footmen last turn, written to both representations
+        CombatEventSummary events = new CombatEventSummary(maxUnitId);
+        List<int[]> damageLogs = new ArrayList<>();
+        for (int i = 0; i < theirs.size(); i++) {
+            events.recordDamage(theirs.get(i), ours.get(i % ours.size()), 0, 1);
+            damageLogs.add(new int[]{theirs.get(i), ours.get(i % ours.size())});
+        }
+
+        FeaturePipeline pipeline = new FeaturePipeline(FeaturePipeline.DEFAULT_FEATURES, "");
+        double[] weights = ParallelTrainer.initialWeights(seed, pipeline.size());
+        Double[] boxedWeights = new Double[weights.length];
+        for (int i = 0; i < weights.length; i++) {
+            boxedWeights[i] = weights[i];
+        }
+        FeatureCache cache = new FeatureCache(pipeline.size(), maxUnitId);
+        double[] scratch = new double[pipeline.size()];
+        Map<Integer, Double[]> boxedCache = new HashMap<>();
+
+        int pairs = ours.size() * theirs.size();
+        int rounds = Math.max(1, 2_000_000 / pairs);
+        long[] best = {Long.MAX_VALUE, Long.MAX_VALUE};
+        long[] allocated = new long[2];
+        double primitiveSum = 0.0;
+        double boxedSum = 0.0;
+        for (int pass = 0; pass < 5; pass++) {
+            primitiveSum = 0.0;
+            long bytes = allocatedBytes();
+            long start = System.nanoTime();
+            for (int round = 0; round < rounds; round++) {
+                cache.nextEpoch();
+                for (int attackerId : ours) {
+                    for (int defenderId : theirs) {
+                        if (!cache.get(attackerId, defenderId, scratch)) {
+                            pipeline.extract(simulator, events, attackerId, defenderId, scratch);
+                            cache.put(attackerId, defenderId, scratch);
+                        }
+                        primitiveSum += RLAgent.dot(weights, scratch);
+                    }
+                }
+            }
+            best[0] = Math.min(best[0], System.nanoTime() - start);
+            allocated[0] = bytes < 0 ? -1 : allocatedBytes() - bytes;
+
+            boxedSum = 0.0;
+            bytes = allocatedBytes();
+            start = System.nanoTime();
+            for (int round = 0; round < rounds; round++) {
+                boxedCache.clear();
+                for (Integer attackerId : ours) {
+                    for (Integer defenderId : theirs) {
+                        Integer key = attackerId * (maxUnitId + 1) + defenderId;
+                        Double[] features = boxedCache.get(key);
+                        if (features == null) {
+                            features = boxedFeatures(simulator, damageLogs, attackerId, defenderId);
+                            boxedCache.put(key, features);
+                        }
+                        Double qValue = 0.0;
+                        for (int i = 0; i < features.length; i++) {
+                            qValue += features[i] * boxedWeights[i];
+                        }
+                        boxedSum += qValue;
+                    }
+                }
+            }
+            best[1] = Math.min(best[1], System.nanoTime() - start);
+            allocated[1] = bytes < 0 ? -1 : allocatedBytes() - bytes;
+        }
+        blackhole = primitiveSum + boxedSum;
+
+        double evaluated = (double) rounds * pairs;
+        out.println("Q-function on " + name + ", " + pairs + " pairs a turn"
+                + (Math.abs(primitiveSum - boxedSum) <= 1e-9 * Math.abs(primitiveSum) ? "" : ", Q-VALUES DIFFER"));
+        out.println("Path                        ns/pair   B/pair");
+        out.println("--------------------------  --------  --------");
+        String[] paths = {"Primitive double[]", "Boxed Double[]"};
+        for (int i = 0; i < paths.length; i++) {
+            out.println(String.format("%-28s%-10.2f%.1f", paths[i], best[i] / evaluated,
+                    allocated[i] < 0 ? Double.NaN : allocated[i] / evaluated));
+        }
+    }
+
+    /**
+     * Times the Q-values one turn needs, with the agent's features and weights, two ways: batched, where one
+     * {@link QMatrix} evaluation gives every footman's best target and its TD target, and one pair at a time the
+     * way the agent did before the matrix, where every footman scores each enemy to pick a target and then scores
+     * them all again for its TD target, with the features cached for the turn. Both must agree on the Q-values.
+     * Reports the best of five passes.
+     */
+    public void reportScaling(String name, BattleScenario scenario, PrintStream out) {
+        RLAgent agent = new RLAgent(0, warmup + episodes, ParallelTrainer.initialWeights(seed, featureCount), WeightUpdater.HOGWILD, seed, agentOptions);
+        CombatSimulator simulator = new CombatSimulator(scenario, seed, CombatSimulator.DEFAULT_TURN_LIMIT);
+        long[] best = {Long.MAX_VALUE, Long.MAX_VALUE};
+        int pairs;
+        int rounds;
+        double batchedSum = 0.0;
+        double pairSum = 0.0;
+        try {
+            simulator.reset();
+            agent.startEpisode(simulator);
+            List<Integer> ours = simulator.getUnitIds(0);
+            List<Integer> theirs = simulator.getUnitIds(RLAgent.ENEMY_PLAYERNUM);
+            int maxUnitId = 0;
+            for (int unitId : simulator.getAllUnitIds()) {
+                maxUnitId = Math.max(maxUnitId, unitId);
+            }
+            double[] weights = ParallelTrainer.initialWeights(seed, featureCount);
+            QMatrix matrix = new QMatrix(featureCount);
+            FeatureCache cache = new FeatureCache(featureCount, maxUnitId);
+            FeatureContext context = new FeatureContext();
+            double[] scratch = new double[featureCount];
+
+            pairs = ours.size() * theirs.size();
+            rounds = Math.max(1, 1_000_000 / pairs);
+            for (int pass = 0; pass < 5; pass++) {
+                batchedSum = 0.0;
+                long start = System.nanoTime();
+                for (int round = 0; round < rounds; round++) {
+                    matrix.evaluate(agent, simulator, ours, theirs, weights);
+                    for (int attackerId : ours) {
+                        batchedSum += matrix.getMaxQValue(matrix.rowOf(attackerId));
+                    }
+                }
+                best[0] = Math.min(best[0], System.nanoTime() - start);
+
+                pairSum = 0.0;
+                start = System.nanoTime();
+                for (int round = 0; round < rounds; round++) {
+                    cache.nextEpoch();
+                    for (int pick = 0; pick < 2; pick++) {
+                        for (int attackerId : ours) {
+                            double maxQ = Double.NEGATIVE_INFINITY;
+                            for (int defenderId : theirs) {
+                                if (!cache.get(attackerId, defenderId, scratch)) {
+                                    agent.extractFeatures(context, simulator, attackerId, defenderId, scratch);
+                                    cache.put(attackerId, defenderId, scratch);
+                                }
+                                maxQ = Math.max(maxQ, RLAgent.dot(weights, scratch));
+                            }
+                            // Target selection and TD target give the same maximum, count it once
+                            if (pick == 0) {
+                                pairSum += maxQ;
+                            }
+                        }
+                    }
+                }
+                best[1] = Math.min(best[1], System.nanoTime() - start);
+            }
+        } finally {
+            agent.close();
+        }
+        blackhole = batchedSum + pairSum;
+
+        out.println("Turn Q-values on " + name + ", " + pairs + " pairs a turn"
+                + (Math.abs(batchedSum - pairSum) <= 1e-9 * Math.abs(batchedSum) ? "" : ", Q-VALUES DIFFER"));
+        out.println("Path                        us/turn     Speedup");
+        out.println("--------------------------  ----------  -------");
+        out.println(String.format("%-28s%-12.2f%.2f", "Batched QMatrix", best[0] / 1000.0 / rounds, (double) best[1] / best[0]));
+        out.println(String.format("%-28s%-12.2f%.2f", "One pair at a time", best[1] / 1000.0 / rounds, 1.0));
+    }
+
+    /**
+     * Times the hot part of the agent's turn, evaluating the Q-matrix, reading every footman's TD target and
+     * picking its target, three ways: with no metrics calls at all, with the calls middleStep makes on a disabled
+     * {@link AgentMetrics}, and with the same calls on an enabled one. The variants take turns going first, so
+     * none of them always runs on a colder machine. Reports the best of ten passes and each variant's overhead
+     * over the one without calls.
+     */
+    public void reportMetricsOverhead(String name, BattleScenario scenario, PrintStream out) {
+        RLAgent agent = new RLAgent(0, warmup + episodes, ParallelTrainer.initialWeights(seed, featureCount), WeightUpdater.HOGWILD, seed, agentOptions);
+        CombatSimulator simulator = new CombatSimulator(scenario, seed, CombatSimulator.DEFAULT_TURN_LIMIT);
+        AgentMetrics disabled = AgentMetrics.disabled();
+        AgentMetrics enabled = new AgentMetrics(true, Integer.MAX_VALUE, null);
+        long[] best = {Long.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE};
+        int rounds;
+        double sum = 0.0;
+        try {
+            simulator.reset();
+            agent.startEpisode(simulator);
+            List<Integer> ours = simulator.getUnitIds(0);
+            List<Integer> theirs = simulator.getUnitIds(RLAgent.ENEMY_PLAYERNUM);
+            double[] weights = ParallelTrainer.initialWeights(seed, featureCount);
+            QMatrix matrix = new QMatrix(featureCount);
+
+            rounds = Math.max(1, 4_000_000 / (ours.size() * theirs.size()));
+            for (int pass = 0; pass < 10; pass++) {
+                for (int i = 0; i < best.length; i++) {
+                    int variant = (pass + i) % best.length;
+                    long start = System.nanoTime();
+                    if (variant == 0) {
+                        sum += plainTurns(agent, simulator, matrix, ours, theirs, weights, rounds);
+                    } else {
+                        sum += instrumentedTurns(variant == 1 ? disabled : enabled, agent, simulator, matrix, ours, theirs, weights, rounds);
+                    }
+                    best[variant] = Math.min(best[variant], System.nanoTime() - start);
+                }
+            }
+        } finally {
+            enabled.close();
+            agent.close();
+        }
+        blackhole = sum;
+
+        out.println("Metrics overhead on " + name + ", " + scenario.getUnitCount() + " units");
+        out.println("Variant                     ns/turn     Overhead %");
+        out.println("--------------------------  ----------  ----------");
+        String[] variants = {"No instrumentation", "Metrics disabled", "Metrics enabled"};
+        for (int i = 0; i < variants.length; i++) {
+            out.println(String.format("%-28s%-12.1f%.2f", variants[i], (double) best[i] / rounds,
+                    100.0 * (best[i] - best[0]) / best[0]));
+        }
+    }
+
+    //The turn loop of reportMetricsOverhead without any metrics calls
+    private static double plainTurns(RLAgent agent, BattleView view, QMatrix matrix, List<Integer> ours, List<Integer> theirs,
+                                     double[] weights, int rounds) {
+        double sum = 0.0;
+        for (int round = 0; round < rounds; round++) {
+            matrix.evaluate(agent, view, ours, theirs, weights);
+            for (int attackerId : ours) {
+                sum += matrix.getMaxQValue(matrix.rowOf(attackerId));
+            }
+            for (int attackerId : ours) {
+                sum += matrix.getBestColumn(matrix.rowOf(attackerId));
+            }
+        }
+        return sum;
+    }
+
+    //The same turn loop with the metrics calls middleStep makes around it
+    private static double instrumentedTurns(AgentMetrics metrics, RLAgent agent, BattleView view, QMatrix matrix,
+                                            List<Integer> ours, List<Integer> theirs, double[] weights, int rounds) {
+        double sum = 0.0;
+        for (int round = 0; round < rounds; round++) {
+            long turnStart = metrics.begin();
+            metrics.countTurn();
+            long phaseStart = metrics.end(AgentMetrics.Phase.DEATHS, turnStart);
+            phaseStart = metrics.end(AgentMetrics.Phase.REWARD, phaseStart);
+            matrix.evaluate(agent, view, ours, theirs, weights);
+            metrics.countQEvaluations(ours.size() * matrix.getScoredPerRow());
+            phaseStart = metrics.end(AgentMetrics.Phase.EVALUATION, phaseStart);
+            for (int attackerId : ours) {
+                sum += matrix.getMaxQValue(matrix.rowOf(attackerId));
+            }
+            phaseStart = metrics.end(AgentMetrics.Phase.LEARNING, phaseStart);
+            for (int attackerId : ours) {
+                sum += matrix.getBestColumn(matrix.rowOf(attackerId));
+            }
+            metrics.end(AgentMetrics.Phase.ACTION_SELECTION, phaseStart);
+            metrics.end(AgentMetrics.Phase.TURN, turnStart);
+        }
+        return sum;
+    }
+
+    //The default features the way calculateFeatureVector computed them before they became primitive
+    private static Double[] boxedFeatures(BattleView view, List<int[]> damageLogs, Integer attackerId, Integer defenderId) {
+        Double[] features = new Double[]{1.0, 0.0, 0.0, 0.0};
+        double isAttackingEnemyAttackingMe = 0.0;
+        for (int[] log : damageLogs) {
+            if (log[0] == defenderId && log[1] == attackerId) {
+                isAttackingEnemyAttackingMe = 1.0;
+            }
+        }
+        features[1] = isAttackingEnemyAttackingMe;
+        features[2] = 1.0 / (Math.abs(view.getXPosition(attackerId) - view.getXPosition(defenderId))
+                + Math.abs(view.getYPosition(attackerId) - view.getYPosition(defenderId)));
+        features[3] = ((double) view.getHP(attackerId)) / ((double) view.getHP(defenderId));
+        return features;
+    }
+
+    //Bytes allocated by the calling thread so far, or -1 if the JVM does not say
+    private static long allocatedBytes() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean sunThreads = (com.sun.management.ThreadMXBean) threads;
+            if (sunThreads.isThreadAllocatedMemorySupported() && sunThreads.isThreadAllocatedMemoryEnabled()) {
+                return sunThreads.getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Loads a scenario named the way the scenarios option names them, generating it first if needed.
+     *
+     * @param spec      A map or config file, or NxM[:layout]
+     * @param directory Where generated scenarios go
+     */
+    public static BattleScenario scenario(String spec, Path directory) throws IOException {
+        return BattleScenario.cached(scenarioFile(spec, directory));
+    }
+
+    /**
+     * @return The file a scenario spec names, after writing it if it is a generated one
+     */
+    public static Path scenarioFile(String spec, Path directory) throws IOException {
+        if (!spec.matches("\\d+x\\d+(:\\w+)?")) {
+            return Paths.get(spec);
+        }
+        String[] parts = spec.split("[x:]");
+        ScenarioGenerator.Layout layout = parts.length > 2
+                ? ScenarioGenerator.Layout.valueOf(parts[2].toUpperCase(Locale.ROOT))
+                : ScenarioGenerator.Layout.BLOCKS;
+        ScenarioGenerator generator = new ScenarioGenerator(Integer.parseInt(parts[0]), Integer.parseInt(parts[1]), layout, 12345);
+        return generator.write(directory);
+    }
+
+    /**
+     * Prints the results as a table.
+     */
+    public static void report(List<Result> results, PrintStream out) {
+        out.println("Scenario                    Decisions/sec   Episodes/sec   Turn p50 us   Turn p99 us   Alloc MB/sec   Alloc B/decision   Deadline missed %");
+        out.println("--------------------------  -------------   ------------   -----------   -----------   ------------   ----------------   -----------------");
+        for (Result result : results) {
+            out.println(String.format("%-28s%-16.0f%-15.1f%-14.1f%-14.1f%-15.1f%-19.0f%.2f", result.scenario,
+                    result.getDecisionsPerSecond(), result.getEpisodesPerSecond(), result.p50Nanos / 1000.0,
+                    result.p99Nanos / 1000.0, result.getAllocatedMegabytesPerSecond(), result.getAllocatedBytesPerDecision(),
+                    result.getDeadlineMissPercent()));
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        Map<String, String> suiteOptions = new HashMap<>();
+        List<String> agentOptions = new ArrayList<>();
+        for (String arg : args) {
+            String name = arg.contains("=") ? arg.substring(0, arg.indexOf('=')) : arg;
+            if (name.equals("scenarios") || name.equals("episodes") || name.equals("warmup") || name.equals("seed")
+                    || name.equals("scenarioDir") || name.equals("agent") || name.equals("checkpoint")
+                    || name.equals("latencyBudgetUs") || name.equals("featureCosts") || name.equals("startup")
+                    || name.equals("boxedQ") || name.equals("scaling") || name.equals("metricsOverhead")) {
+                suiteOptions.put(name, arg.substring(arg.indexOf('=') + 1));
+            } else {
+                agentOptions.add(arg);
+            }
+        }
+
+        BenchmarkSuite suite = new BenchmarkSuite(
+                Integer.parseInt(suiteOptions.getOrDefault("episodes", "50")),
+                Integer.parseInt(suiteOptions.getOrDefault("warmup", "20")),
+                Long.parseLong(suiteOptions.getOrDefault("seed", "12345")),
+                agentOptions.toArray(new String[0]));
+        Path directory = Paths.get(suiteOptions.getOrDefault("scenarioDir", "bench_scenarios"));
+
+        boolean inference = suiteOptions.getOrDefault("agent", "learning").equals("inference");
+        double[] weights = ParallelTrainer.initialWeights(suite.seed, suite.featureCount);
+        String[] featureNames = FeaturePipeline.fromArguments(args).getNames();
+        HashedFeatures hashed = null;
+        if (suiteOptions.containsKey("checkpoint")) {
+            WeightCheckpointer.Checkpoint checkpoint = WeightCheckpointer.read(Paths.get(suiteOptions.get("checkpoint")));
+            if (checkpoint == null) {
+                throw new IOException("Can't read checkpoint " + suiteOptions.get("checkpoint"));
+            }
+            weights = checkpoint.weights;
+            featureNames = checkpoint.featureNames;
+            hashed = checkpoint.hashed;
+        }
+        long latencyBudgetNanos = Long.parseLong(suiteOptions.getOrDefault("latencyBudgetUs", "500")) * 1000;
+
+        List<Result> results = new ArrayList<>();
+        Map<String, BattleScenario> scenarios = new LinkedHashMap<>();
+        Map<String, Path> files = new LinkedHashMap<>();
+        for (String spec : suiteOptions.getOrDefault("scenarios", DEFAULT_SCENARIOS).split(",")) {
+            Path file = scenarioFile(spec.trim(), directory);
+            BattleScenario scenario = BattleScenario.cached(file);
+            scenarios.put(spec.trim(), scenario);
+            files.put(spec.trim(), file);
+            results.add(inference
+                    ? suite.runInference(spec.trim(), scenario, weights, featureNames, hashed, latencyBudgetNanos)
+                    : suite.run(spec.trim(), scenario));
+        }
+        report(results, System.out);
+
+        if (Boolean.parseBoolean(suiteOptions.getOrDefault("featureCosts", "false"))) {
+            for (Map.Entry<String, BattleScenario> scenario : scenarios.entrySet()) {
+                System.out.println();
+                suite.reportFeatureCosts(scenario.getKey(), scenario.getValue(), System.out);
+            }
+        }
+        if (Boolean.parseBoolean(suiteOptions.getOrDefault("startup", "false"))) {
+            for (Map.Entry<String, Path> file : files.entrySet()) {
+                System.out.println();
+                suite.reportStartup(file.getKey(), file.getValue(), System.out);
+            }
+        }
+        if (Boolean.parseBoolean(suiteOptions.getOrDefault("boxedQ", "false"))) {
+            for (String spec : new String[]{"5x5", "10x10"}) {
+                System.out.println();
+                suite.reportBoxedQ(spec, scenario(spec, directory), System.out);
+            }
+        }
+        if (Boolean.parseBoolean(suiteOptions.getOrDefault("scaling", "false"))) {
+            for (String spec : new String[]{"10x10", "50x50", "200x200"}) {
+                System.out.println();
+                suite.reportScaling(spec, scenario(spec, directory), System.out);
+            }
+        }
+        if (Boolean.parseBoolean(suiteOptions.getOrDefault("metricsOverhead", "false"))) {
+            System.out.println();
+            suite.reportMetricsOverhead("10x10", scenario("10x10", directory), System.out);
+        }
+    }
+}
@@ -0,0 +1,262 @@
+package edu.cwru.sepia.agent;
+
+import java.util.Arrays;
+
+/**
+ * Index of everything that happened on the previous turn. It is built once per turn in middleStep so that
+ * the reward and feature calculations can look things up by unit ID instead of walking the damage, death
+ * and command logs again for every footman.
+ * <p>
+ * All per-unit data is stored in arrays indexed by unit ID, so lookups are O(1) and never box.
+ */
+public class CombatEventSummary {
+
+    /**
+     * One more than the largest unit ID we can index.
+     */
+    private int capacity;
+
+    //Player the summary is built for
+    private int playernum;
+
+    //Per unit totals for the last turn
+    private int[] damageDealt;
+    private int[] damageTaken;
+    private boolean[] died;
+    private boolean[] commandIssued;
+    private boolean[] actionEnded;
+
+    //Flattened attacker x defender matrix of who hit whom, and the cells we set so we can clear them cheaply
+    private boolean[] attacked;
+    private int[] attackedCells;
+    private int attackedCellCount;
+    //Number of different units that hit each unit
+    private int[] attackerCount;
+
+    //Totals per side, only counting damage to units that survived the turn
+    private int damageToFriendly;
+    private int damageToEnemy;
+    private int friendlyDeaths;
+    private int enemyDeaths;
+
+    //Raw event counts, used to decide if anything happened at all
+    private int damageEventCount;
+    private int deathEventCount;
+    private int commandCount;
+    private int actionEndedCount;
+
+    /**
+     * @param maxUnitId The largest unit ID in the episode. The summary grows if it sees a larger one.
+     */
+    public CombatEventSummary(int maxUnitId) {
+        capacity = maxUnitId + 1;
+        damageDealt = new int[capacity];
+        damageTaken = new int[capacity];
+        died = new boolean[capacity];
+        commandIssued = new boolean[capacity];
+        actionEnded = new boolean[capacity];
+        attacked = new boolean[capacity * capacity];
+        attackedCells = new int[16];
+        attackerCount = new int[capacity];
+    }
+
+    /**
+     * Rebuilds the summary from the events of the given turn.
+     *
+     * @param view      The battle
+     * @param playernum Our player number
+     * @param turn      The turn to summarize, normally the previous one. Negative turns give an empty summary.
+     */
+    public void build(BattleView view, int playernum, int turn) {
+        clear();
+        this.playernum = playernum;
+        if (turn < 0) {
+            return;
+        }
+        view.reportEvents(turn, playernum, this);
+    }
+
+    /**
+     * Records a unit dying. Deaths have to be recorded before damage.
+     */
+    public void recordDeath(int unitId, int controller) {
+        died[ensureCapacity(unitId)] = true;
+        if (controller == RLAgent.ENEMY_PLAYERNUM) {
+            enemyDeaths++;
+        } else {
+            friendlyDeaths++;
+        }
+        deathEventCount++;
+    }
+
+    /**
+     * Records one attack.
+     */
+    public void recordDamage(int attackerId, int defenderId, int defenderController, int damage) {
+        ensureCapacity(Math.max(attackerId, defenderId));
+        damageDealt[attackerId] += damage;
+        damageTaken[defenderId] += damage;
+        markAttacked(attackerId, defenderId);
+
+        //Units that died this turn are no longer tracked by the agent so their damage is not rewarded
+        if (!died[defenderId]) {
+            if (defenderController == playernum) {
+                damageToFriendly += damage;
+            } else {
+                damageToEnemy += damage;
+            }
+        }
+        damageEventCount++;
+    }
+
+    /**
+     * Records that our player gave the unit a command.
+     */
+    public void recordCommand(int unitId) {
+        commandIssued[ensureCapacity(unitId)] = true;
+        commandCount++;
+    }
+
+    /**
+     * Records that one of our units' actions completed or failed, so the unit is waiting for a new order.
+     */
+    public void recordActionEnded(int unitId) {
+        actionEnded[ensureCapacity(unitId)] = true;
+        actionEndedCount++;
+    }
+
+    private void clear() {
+        Arrays.fill(damageDealt, 0);
+        Arrays.fill(damageTaken, 0);
+        Arrays.fill(died, false);
+        Arrays.fill(commandIssued, false);
+        Arrays.fill(actionEnded, false);
+        for (int i = 0; i < attackedCellCount; i++) {
+            attacked[attackedCells[i]] = false;
+            attackerCount[attackedCells[i] % capacity] = 0;
+        }
+        attackedCellCount = 0;
+
+        damageToFriendly = 0;
+        damageToEnemy = 0;
+        friendlyDeaths = 0;
+        enemyDeaths = 0;
+        damageEventCount = 0;
+        deathEventCount = 0;
+        commandCount = 0;
+        actionEndedCount = 0;
+    }
+
+    private void markAttacked(int attackerId, int defenderId) {
+        int cell = attackerId * capacity + defenderId;
+        if (attacked[cell]) {
+            return;
+        }
+        attacked[cell] = true;
+        attackerCount[defenderId]++;
+        if (attackedCellCount == attackedCells.length) {
+            attackedCells = Arrays.copyOf(attackedCells, attackedCells.length * 2);
+        }
+        attackedCells[attackedCellCount++] = cell;
+    }
+
+    /**
+     * Makes sure the unit ID can be indexed, growing the arrays if needed. Only happens if units show up
+     * that were not there when the episode started.
+     */
+    private int ensureCapacity(int unitId) {
+        if (unitId >= capacity) {
+            int oldCapacity = capacity;
+            int[] oldCells = Arrays.copyOf(attackedCells, attackedCellCount);
+
+            capacity = Math.max(unitId + 1, capacity * 2);
+            damageDealt = Arrays.copyOf(damageDealt, capacity);
+            damageTaken = Arrays.copyOf(damageTaken, capacity);
+            died = Arrays.copyOf(died, capacity);
+            commandIssued = Arrays.copyOf(commandIssued, capacity);
+            actionEnded = Arrays.copyOf(actionEnded, capacity);
+            attacked = new boolean[capacity * capacity];
+            attackerCount = new int[capacity];
+            attackedCellCount = 0;
+            for (int cell : oldCells) {
+                markAttacked(cell / oldCapacity, cell % oldCapacity);
+            }
+        }
+        return unitId;
+    }
+
+    /**
+     * @return True if the attacker damaged the defender on the summarized turn
+     */
+    public boolean isAttacking(int attackerId, int defenderId) {
+        return attackerId < capacity && defenderId < capacity && attacked[attackerId * capacity + defenderId];
+    }
+
+    /**
+     * @return Number of different units that damaged the unit on the summarized turn
+     */
+    public int getAttackerCount(int unitId) {
+        return unitId < capacity ? attackerCount[unitId] : 0;
+    }
+
+    public int getDamageDealt(int unitId) {
+        return unitId < capacity ? damageDealt[unitId] : 0;
+    }
+
+    public int getDamageTaken(int unitId) {
+        return unitId < capacity ? damageTaken[unitId] : 0;
+    }
+
+    public boolean hasDied(int unitId) {
+        return unitId < capacity && died[unitId];
+    }
+
+    public boolean wasCommandIssued(int unitId) {
+        return unitId < capacity && commandIssued[unitId];
+    }
+
+    /**
+     * @return True if the unit's action completed or failed on the summarized turn
+     */
+    public boolean hasActionEnded(int unitId) {
+        return unitId < capacity && actionEnded[unitId];
+    }
+
+    /**
+     * @return Damage taken by our surviving units
+     */
+    public int getDamageToFriendly() {
+        return damageToFriendly;
+    }
+
+    /**
+     * @return Damage taken by surviving enemy units
+     */
+    public int getDamageToEnemy() {
+        return damageToEnemy;
+    }
+
+    public int getFriendlyDeaths() {
+        return friendlyDeaths;
+    }
+
+    public int getEnemyDeaths() {
+        return enemyDeaths;
+    }
+
+    public int getDamageEventCount() {
+        return damageEventCount;
+    }
+
+    public int getDeathEventCount() {
+        return deathEventCount;
+    }
+
+    public int getCommandCount() {
+        return commandCount;
+    }
+
+    public int getActionEndedCount() {
+        return actionEndedCount;
+    }
+}
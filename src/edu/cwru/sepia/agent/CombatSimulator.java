@@ -0,0 +1,425 @@
+package edu.cwru.sepia.agent;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.SplittableRandom;
+
+/**
+ * A small headless stand-in for SEPIA that only knows about footman combat. Training against it skips the
+ * whole SEPIA engine, so episodes run orders of magnitude faster. SEPIA is then only needed to validate the
+ * trained weights.
+ * <p>
+ * The rules follow SEPIA closely enough for learning:
+ * <ul>
+ * <li>Units attack when their target is in range, which is the same check as {@link RLAgent#inRange}.
+ * Otherwise they take one step towards the target, around a blocked cell if they can.</li>
+ * <li>Damage is (basic attack - armor, at least 0) + piercing attack, scaled randomly to 50-100%.</li>
+ * <li>Units act in a random order each turn and die as soon as their health reaches 0.</li>
+ * <li>The enemy attacks the closest of our units, and picks a new target when its target dies.</li>
+ * </ul>
+ * Like SEPIA, orders given on a turn are carried out on that turn and the agent sees the resulting damage,
+ * deaths and commands on the next one. Only the previous turn's events are kept.
+ * <p>
+ * An order stands until it is replaced, its target dies or the unit fails to take a step towards the target.
+ * The failure is reported to the agent as an ended action, like SEPIA's FAILED feedback.
+ */
+public class CombatSimulator implements BattleView, EpisodeDriver {
+
+    public static final int DEFAULT_TURN_LIMIT = 1000;
+
+    private static final int PLAYERNUM = 0;
+
+    private final BattleScenario scenario;
+    private final Random random;
+    private final int turnLimit;
+
+    //Unit state, indexed by the unit's slot in the scenario
+    private final int[] xs;
+    private final int[] ys;
+    private final int[] hps;
+    private final int[] targets;
+    private final boolean[] alive;
+    private final int[] aliveCount = new int[2];
+    private final int[] order;
+
+    //Unit ID -> slot, -1 for unknown IDs
+    private final int[] slotOfUnit;
+    //Map cell -> slot + 1 of the unit standing there, 0 when empty
+    private final int[] occupant;
+
+    private int turn;
+
+    //Units our player ordered around this turn
+    private final int[] pendingCommands;
+    private int pendingCommandCount;
+
+    //What happened on the previous turn
+    private final int[] deaths;
+    private int deathCount;
+    private final int[] damageAttackers;
+    private final int[] damageDefenders;
+    private final int[] damageAmounts;
+    private int damageCount;
+    private final int[] commands;
+    private int commandCount;
+    private final int[] endedActions;
+    private int endedActionCount;
+
+    //Orders carried out over the simulator's lifetime, for benchmarks
+    private long issuedOrders;
+
+    /**
+     * @param scenario  Starting position, shared and never modified
+     * @param seed      Seed for damage rolls and turn order
+     * @param turnLimit Episodes are cut off after this many turns
+     */
+    public CombatSimulator(BattleScenario scenario, long seed, int turnLimit) {
+        this.scenario = scenario;
+        this.random = new Random(seed);
+        this.turnLimit = turnLimit;
+
+        int units = scenario.getUnitCount();
+        xs = new int[units];
+        ys = new int[units];
+        hps = new int[units];
+        targets = new int[units];
+        alive = new boolean[units];
+        order = new int[units];
+        pendingCommands = new int[units];
+        deaths = new int[units];
+        damageAttackers = new int[units];
+        damageDefenders = new int[units];
+        damageAmounts = new int[units];
+        commands = new int[units];
+        endedActions = new int[units];
+        occupant = new int[scenario.xExtent * scenario.yExtent];
+        // Only ever read, so shared with the scenario
+        slotOfUnit = scenario.slotOfUnit;
+    }
+
+    @Override
+    public void runEpisode(RLAgent agent) {
+        reset();
+        agent.startEpisode(this);
+        Map<Integer, Integer> orders = agent.selectTargets(this);
+        while (true) {
+            issue(orders);
+            directOpponent();
+            step();
+            if (isOver()) {
+                break;
+            }
+            orders = agent.selectTargets(this);
+        }
+        agent.endEpisode();
+    }
+
+    /**
+     * Plays an episode with a frozen policy. Same loop as for a learning agent, but the orders are read
+     * straight from the agent's arrays.
+     */
+    public void runEpisode(InferenceAgent agent) {
+        reset();
+        agent.startEpisode(this);
+        while (true) {
+            pendingCommandCount = 0;
+            int orders = agent.decide(this);
+            for (int i = 0; i < orders; i++) {
+                issue(agent.getOrderedUnit(i), agent.getOrderedTarget(i));
+            }
+            issuedOrders += pendingCommandCount;
+            directOpponent();
+            step();
+            if (isOver()) {
+                break;
+            }
+        }
+        agent.endEpisode();
+    }
+
+    /**
+     * Puts every unit back where the scenario starts it. The starting state is built once by the scenario, so
+     * this is only bulk array copies.
+     */
+    public void reset() {
+        turn = 0;
+        System.arraycopy(scenario.initialOccupant, 0, occupant, 0, occupant.length);
+        System.arraycopy(scenario.initialAliveCount, 0, aliveCount, 0, aliveCount.length);
+        System.arraycopy(scenario.xPositions, 0, xs, 0, xs.length);
+        System.arraycopy(scenario.yPositions, 0, ys, 0, ys.length);
+        System.arraycopy(scenario.hps, 0, hps, 0, hps.length);
+        Arrays.fill(targets, -1);
+        Arrays.fill(alive, true);
+        pendingCommandCount = 0;
+        deathCount = 0;
+        damageCount = 0;
+        commandCount = 0;
+        endedActionCount = 0;
+    }
+
+    /**
+     * @return True once a side has no units left or the turn limit is reached
+     */
+    public boolean isOver() {
+        return aliveCount[PLAYERNUM] == 0 || aliveCount[RLAgent.ENEMY_PLAYERNUM] == 0 || turn >= turnLimit;
+    }
+
+    private void issue(Map<Integer, Integer> orders) {
+        pendingCommandCount = 0;
+        if (orders == null) {
+            return;
+        }
+        for (Map.Entry<Integer, Integer> order : orders.entrySet()) {
+            issue(order.getKey(), order.getValue());
+        }
+        issuedOrders += pendingCommandCount;
+    }
+
+    private void issue(int unitId, int targetId) {
+        int slot = slotOf(unitId);
+        int target = slotOf(targetId);
+        if (slot < 0 || target < 0 || !alive[slot] || scenario.players[slot] != PLAYERNUM) {
+            return;
+        }
+        targets[slot] = target;
+        pendingCommands[pendingCommandCount++] = slot;
+    }
+
+    /**
+     * @return Number of orders the agent has given since the simulator was created
+     */
+    public long getIssuedOrderCount() {
+        return issuedOrders;
+    }
+
+    /**
+     * Enemy units without a living target go after the closest of our units.
+     */
+    private void directOpponent() {
+        for (int slot = 0; slot < xs.length; slot++) {
+            if (!alive[slot] || scenario.players[slot] != RLAgent.ENEMY_PLAYERNUM) {
+                continue;
+            }
+            if (targets[slot] >= 0 && alive[targets[slot]]) {
+                continue;
+            }
+            int closest = -1;
+            int closestDistance = Integer.MAX_VALUE;
+            for (int other = 0; other < xs.length; other++) {
+                if (alive[other] && scenario.players[other] == PLAYERNUM && distance(slot, other) < closestDistance) {
+                    closest = other;
+                    closestDistance = distance(slot, other);
+                }
+            }
+            targets[slot] = closest;
+        }
+    }
+
+    /**
+     * Carries out one turn and records what happened in it.
+     */
+    private void step() {
+        deathCount = 0;
+        damageCount = 0;
+        endedActionCount = 0;
+        System.arraycopy(pendingCommands, 0, commands, 0, pendingCommandCount);
+        commandCount = pendingCommandCount;
+        pendingCommandCount = 0;
+
+        // Shuffle the turn order so neither side always strikes first
+        for (int i = 0; i < order.length; i++) {
+            int j = random.nextInt(i + 1);
+            order[i] = order[j];
+            order[j] = i;
+        }
+
+        for (int slot : order) {
+            if (!alive[slot]) {
+                continue;
+            }
+            int target = targets[slot];
+            if (target < 0 || !alive[target]) {
+                targets[slot] = -1;
+            } else if (distance(slot, target) <= 1) {
+                attack(slot, target);
+            } else if (!moveTowards(slot, target) && scenario.players[slot] == PLAYERNUM) {
+                endedActions[endedActionCount++] = slot;
+            }
+        }
+        turn++;
+    }
+
+    private void attack(int attacker, int defender) {
+        int damage = Math.max(0, scenario.basicAttacks[attacker] - scenario.armors[defender]) + scenario.piercingAttacks[attacker];
+        damage = damage * (50 + random.nextInt(51)) / 100;
+
+        hps[defender] -= damage;
+        damageAttackers[damageCount] = attacker;
+        damageDefenders[damageCount] = defender;
+        damageAmounts[damageCount] = damage;
+        damageCount++;
+
+        if (hps[defender] <= 0) {
+            alive[defender] = false;
+            aliveCount[scenario.players[defender]]--;
+            occupant[cell(xs[defender], ys[defender])] = 0;
+            deaths[deathCount++] = defender;
+        }
+    }
+
+    //Returns false if every step towards the target is blocked
+    private boolean moveTowards(int slot, int target) {
+        int dx = Integer.signum(xs[target] - xs[slot]);
+        int dy = Integer.signum(ys[target] - ys[slot]);
+        return tryMove(slot, dx, dy) || (dx != 0 && tryMove(slot, dx, 0)) || (dy != 0 && tryMove(slot, 0, dy));
+    }
+
+    private boolean tryMove(int slot, int dx, int dy) {
+        int x = xs[slot] + dx;
+        int y = ys[slot] + dy;
+        if (x < 0 || y < 0 || x >= scenario.xExtent || y >= scenario.yExtent || occupant[cell(x, y)] != 0) {
+            return false;
+        }
+        occupant[cell(xs[slot], ys[slot])] = 0;
+        xs[slot] = x;
+        ys[slot] = y;
+        occupant[cell(x, y)] = slot + 1;
+        return true;
+    }
+
+    //Chebyshev distance, so 1 means adjacent like in RLAgent.inRange
+    private int distance(int a, int b) {
+        return Math.max(Math.abs(xs[a] - xs[b]), Math.abs(ys[a] - ys[b]));
+    }
+
+    private int cell(int x, int y) {
+        return y * scenario.xExtent + x;
+    }
+
+    private int slotOf(int unitId) {
+        return unitId >= 0 && unitId < slotOfUnit.length ? slotOfUnit[unitId] : -1;
+    }
+
+    @Override
+    public int getTurnNumber() {
+        return turn;
+    }
+
+    @Override
+    public List<Integer> getUnitIds(int player) {
+        List<Integer> unitIds = new ArrayList<>();
+        for (int slot = 0; slot < xs.length; slot++) {
+            if (alive[slot] && scenario.players[slot] == player) {
+                unitIds.add(scenario.unitIds[slot]);
+            }
+        }
+        return unitIds;
+    }
+
+    @Override
+    public List<Integer> getAllUnitIds() {
+        List<Integer> unitIds = new ArrayList<>();
+        for (int slot = 0; slot < xs.length; slot++) {
+            if (alive[slot]) {
+                unitIds.add(scenario.unitIds[slot]);
+            }
+        }
+        return unitIds;
+    }
+
+    @Override
+    public String getUnitTypeName(int unitId) {
+        return scenario.typeNames[slotOfUnit[unitId]];
+    }
+
+    @Override
+    public int getXPosition(int unitId) {
+        return xs[slotOfUnit[unitId]];
+    }
+
+    @Override
+    public int getYPosition(int unitId) {
+        return ys[slotOfUnit[unitId]];
+    }
+
+    @Override
+    public int getHP(int unitId) {
+        return hps[slotOfUnit[unitId]];
+    }
+
+    @Override
+    public void copyUnits(int player, UnitSnapshot snapshot) {
+        for (int slot = 0; slot < xs.length; slot++) {
+            if (alive[slot] && scenario.players[slot] == player) {
+                snapshot.add(scenario.unitIds[slot], player, xs[slot], ys[slot], hps[slot], scenario.typeNames[slot]);
+            }
+        }
+    }
+
+    @Override
+    public void reportEvents(int turn, int playernum, CombatEventSummary summary) {
+        if (turn != this.turn - 1) {
+            return;
+        }
+        for (int i = 0; i < deathCount; i++) {
+            summary.recordDeath(scenario.unitIds[deaths[i]], scenario.players[deaths[i]]);
+        }
+        for (int i = 0; i < damageCount; i++) {
+            int defender = damageDefenders[i];
+            summary.recordDamage(scenario.unitIds[damageAttackers[i]], scenario.unitIds[defender], scenario.players[defender], damageAmounts[i]);
+        }
+        if (playernum == PLAYERNUM) {
+            for (int i = 0; i < commandCount; i++) {
+                summary.recordCommand(scenario.unitIds[commands[i]]);
+            }
+            for (int i = 0; i < endedActionCount; i++) {
+                summary.recordActionEnded(scenario.unitIds[endedActions[i]]);
+            }
+        }
+    }
+
+    /**
+     * Trains headlessly and writes the weights to the agent's checkpoint, so a SEPIA run with the load weights
+     * argument set picks them up for validation.
+     * <p>
+     * Usage: CombatSimulator &lt;map or config xml&gt; &lt;episodes per worker&gt; [workers] [name=value ...]
+     * <p>
+     * The option scaling=true reports episodes/sec for 1 up to the given number of workers instead.
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length < 2) {
+            System.err.println("Usage: CombatSimulator <map or config xml> <episodes per worker> [workers] [name=value ...]");
+            System.exit(1);
+        }
+        BattleScenario scenario = BattleScenario.cached(Paths.get(args[0]));
+        int episodes = Integer.parseInt(args[1]);
+        int workers = args.length >= 3 ? Integer.parseInt(args[2]) : 1;
+        String[] options = args.length > 3 ? Arrays.copyOfRange(args, 3, args.length) : new String[0];
+
+        SplittableRandom seeds = new SplittableRandom(12345);
+        ParallelTrainer trainer = new ParallelTrainer(
+                () -> new CombatSimulator(scenario, seeds.split().nextLong(), DEFAULT_TURN_LIMIT),
+                WeightUpdater.HOGWILD, 12345, options);
+
+        if (Arrays.asList(options).contains("scaling=true")) {
+            trainer.reportScaling(workers, episodes, System.out);
+            return;
+        }
+
+        FeaturePipeline features = FeaturePipeline.fromArguments(options);
+        double[] weights = ParallelTrainer.initialWeights(12345, features.size());
+        HashedFeatures hashed = HashedFeatures.fromArguments(options);
+        long nanos = trainer.train(workers, episodes, weights, hashed);
+        System.out.println(String.format("Trained %d episodes in %.1f s. Weights: %s",
+                workers * episodes, nanos / 1e9, Arrays.toString(weights)));
+
+        WeightCheckpointer checkpointer = new WeightCheckpointer(RLAgent.CHECKPOINT_PATH);
+        checkpointer.save(weights, features.getNames(), hashed, 0, new Random(12345));
+        checkpointer.close();
+    }
+}
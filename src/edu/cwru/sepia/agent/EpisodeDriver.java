@@ -0,0 +1,16 @@
+package edu.cwru.sepia.agent;
+
+/**
+ * Runs whole episodes of a game for an agent. Each driver owns its own environment, so several drivers can
+ * run side by side on different threads.
+ */
+public interface EpisodeDriver {
+
+    /**
+     * Plays one episode from the initial state to the end, calling the agent's initialStep, middleStep and
+     * terminalStep along the way.
+     *
+     * @param agent The learning agent controlling our footmen
+     */
+    void runEpisode(RLAgent agent);
+}
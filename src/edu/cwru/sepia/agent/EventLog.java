@@ -0,0 +1,363 @@
+package edu.cwru.sepia.agent;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Buffered event log for the training loop. Logging only puts a record on a bounded queue, a daemon thread
+ * formats the records and hands them to the sink, so the game thread never waits on the console. If the queue
+ * is full the record is dropped and counted instead of blocking.
+ * <p>
+ * Every event has a key, and DEBUG events with the same key get through at most once per rate limit interval.
+ * The ones held back are counted and the count is reported with the next one that gets through. INFO and above
+ * are never held back, they are progress lines like the learning curve and don't come once per turn.
+ * <p>
+ * Messages are templates with named fields, like "Episode {episode} -- testing? {testing}". In TEXT format the
+ * fields are filled in. In COMPACT format a line is the time, level and key followed by name=value pairs, which
+ * is easier to grep and parse over a long run.
+ */
+public class EventLog {
+
+    public enum Level {
+        DEBUG, INFO, WARN, ERROR
+    }
+
+    public enum Format {
+        TEXT, COMPACT
+    }
+
+    /**
+     * Where formatted lines go. Only ever called from the log's writer thread.
+     */
+    public interface Sink {
+        void write(Level level, String line);
+
+        /**
+         * Called whenever the queue has been drained.
+         */
+        default void flush() {
+        }
+
+        default void close() {
+            flush();
+        }
+    }
+
+    /**
+     * Warnings and errors to System.err, everything else to System.out.
+     */
+    public static final Sink CONSOLE = new Sink() {
+        @Override
+        public void write(Level level, String line) {
+            (level.compareTo(Level.WARN) >= 0 ? System.err : System.out).println(line);
+        }
+
+        @Override
+        public void flush() {
+            System.out.flush();
+            System.err.flush();
+        }
+    };
+
+    /**
+     * Appends every line to a file.
+     */
+    public static Sink file(Path path) throws IOException {
+        if (path.toAbsolutePath().getParent() != null) {
+            Files.createDirectories(path.toAbsolutePath().getParent());
+        }
+        BufferedWriter writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        return new Sink() {
+            @Override
+            public void write(Level level, String line) {
+                try {
+                    writer.write(line);
+                    writer.newLine();
+                } catch (IOException ex) {
+                    throw new UncheckedIOException(ex);
+                }
+            }
+
+            @Override
+            public void flush() {
+                try {
+                    writer.flush();
+                } catch (IOException ex) {
+                    throw new UncheckedIOException(ex);
+                }
+            }
+
+            @Override
+            public void close() {
+                try {
+                    writer.close();
+                } catch (IOException ex) {
+                    throw new UncheckedIOException(ex);
+                }
+            }
+        };
+    }
+
+    private static final class Entry {
+        final Level level;
+        final String key;
+        final String template;
+        final Object[] values;
+        final int suppressed;
+        final long time;
+        final CountDownLatch drained;
+
+        Entry(Level level, String key, String template, Object[] values, int suppressed, long time, CountDownLatch drained) {
+            this.level = level;
+            this.key = key;
+            this.template = template;
+            this.values = values;
+            this.suppressed = suppressed;
+            this.time = time;
+            this.drained = drained;
+        }
+    }
+
+    //When each key may next be logged and how many of its events were held back since it last was
+    private static final class KeyLimit {
+        final AtomicLong nextAllowed;
+        final AtomicInteger suppressed = new AtomicInteger();
+
+        KeyLimit(long now) {
+            nextAllowed = new AtomicLong(now);
+        }
+    }
+
+    private static final AtomicInteger INSTANCES = new AtomicInteger();
+
+    //Longest flush() waits for the writer before giving up
+    private static final long FLUSH_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    private final Level threshold;
+    private final Format format;
+    private final long rateLimitNanos;
+    private final Sink sink;
+
+    private final BlockingQueue<Entry> queue;
+    private final ConcurrentHashMap<String, KeyLimit> limits = new ConcurrentHashMap<>();
+    private final AtomicLong dropped = new AtomicLong();
+    private final Thread writer;
+    private volatile boolean closed;
+
+    /**
+     * @param threshold     Events below this level are ignored
+     * @param format        How lines are written
+     * @param rateLimitMs   Minimum time between two DEBUG events with the same key, 0 for no limit
+     * @param queueCapacity Records that can wait to be written before new ones are dropped
+     * @param sink          Where the lines go
+     */
+    public EventLog(Level threshold, Format format, long rateLimitMs, int queueCapacity, Sink sink) {
+        this.threshold = threshold;
+        this.format = format;
+        this.rateLimitNanos = TimeUnit.MILLISECONDS.toNanos(rateLimitMs);
+        this.sink = sink;
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        this.writer = new Thread(this::drain, "event-log-" + INSTANCES.getAndIncrement());
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    public boolean isEnabled(Level level) {
+        return !closed && level.compareTo(threshold) >= 0;
+    }
+
+    public void debug(String key, String template, Object... values) {
+        log(Level.DEBUG, key, template, values);
+    }
+
+    public void info(String key, String template, Object... values) {
+        log(Level.INFO, key, template, values);
+    }
+
+    public void warn(String key, String template, Object... values) {
+        log(Level.WARN, key, template, values);
+    }
+
+    public void error(String key, String template, Object... values) {
+        log(Level.ERROR, key, template, values);
+    }
+
+    /**
+     * Queues an event. Never blocks.
+     *
+     * @param level    Level of the event
+     * @param key      DEBUG events with the same key share a rate limit
+     * @param template Message with a {name} placeholder per value
+     * @param values   Values of the placeholders, in order
+     */
+    public void log(Level level, String key, String template, Object... values) {
+        if (!isEnabled(level)) {
+            return;
+        }
+        int suppressed = 0;
+        if (rateLimitNanos > 0 && level == Level.DEBUG) {
+            long now = System.nanoTime();
+            KeyLimit limit = limits.get(key);
+            if (limit == null) {
+                limit = limits.computeIfAbsent(key, k -> new KeyLimit(now));
+            }
+            long nextAllowed = limit.nextAllowed.get();
+            if (now - nextAllowed < 0 || !limit.nextAllowed.compareAndSet(nextAllowed, now + rateLimitNanos)) {
+                limit.suppressed.incrementAndGet();
+                return;
+            }
+            suppressed = limit.suppressed.getAndSet(0);
+        }
+        if (!queue.offer(new Entry(level, key, template, values, suppressed, System.currentTimeMillis(), null))) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    /**
+     * Waits until everything queued so far has been written. Used before printing straight to the console so
+     * that lines come out in order. Gives up after 10 seconds, or as soon as the writer thread is found dead.
+     */
+    public void flush() {
+        if (closed || !writer.isAlive()) {
+            return;
+        }
+        CountDownLatch drained = new CountDownLatch(1);
+        Entry marker = new Entry(null, null, null, null, 0, 0L, drained);
+        long deadline = System.nanoTime() + FLUSH_TIMEOUT_NANOS;
+        try {
+            // Both waits go in short steps so a writer that dies meanwhile doesn't leave us waiting for good
+            while (!queue.offer(marker, 100, TimeUnit.MILLISECONDS)) {
+                if (!isWriterUsable(deadline)) {
+                    return;
+                }
+            }
+            while (!drained.await(100, TimeUnit.MILLISECONDS)) {
+                if (!isWriterUsable(deadline)) {
+                    return;
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    //False once the writer thread is gone or the flush deadline has passed
+    private boolean isWriterUsable(long deadline) {
+        if (!writer.isAlive()) {
+            return false;
+        }
+        if (System.nanoTime() - deadline > 0) {
+            System.err.println("Timed out waiting to flush the event log.");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Writes what is still queued and stops the writer thread. Later events are ignored.
+     */
+    public void close() {
+        if (closed) {
+            return;
+        }
+        flush();
+        closed = true;
+        writer.interrupt();
+        try {
+            writer.join(TimeUnit.SECONDS.toMillis(10));
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return Number of events dropped because the queue was full
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    private void drain() {
+        long reportedDrops = 0;
+        try {
+            while (true) {
+                Entry entry = queue.take();
+                do {
+                    if (entry.drained != null) {
+                        sink.flush();
+                        entry.drained.countDown();
+                    } else {
+                        sink.write(entry.level, format(entry));
+                    }
+                    entry = queue.poll();
+                } while (entry != null);
+
+                long drops = dropped.get();
+                if (drops != reportedDrops) {
+                    sink.write(Level.WARN, format(new Entry(Level.WARN, "log.dropped",
+                            "Event log queue was full, {dropped} events dropped", new Object[]{drops - reportedDrops},
+                            0, System.currentTimeMillis(), null)));
+                    reportedDrops = drops;
+                }
+                sink.flush();
+            }
+        } catch (InterruptedException ex) {
+            // Closed
+        } catch (RuntimeException ex) {
+            System.err.println("Event log stopped. Reason: " + ex.getMessage());
+            closed = true;
+        } finally {
+            sink.close();
+        }
+    }
+
+    private String format(Entry entry) {
+        StringBuilder line = new StringBuilder();
+        String template = entry.template;
+        if (format == Format.COMPACT) {
+            line.append(entry.time).append(' ').append(entry.level).append(' ').append(entry.key);
+        }
+
+        int value = 0;
+        int start = 0;
+        while (start < template.length()) {
+            int open = template.indexOf('{', start);
+            int close = open < 0 ? -1 : template.indexOf('}', open);
+            if (close < 0) {
+                if (format == Format.TEXT) {
+                    line.append(template, start, template.length());
+                }
+                break;
+            }
+            Object fieldValue = value < entry.values.length ? entry.values[value++] : null;
+            if (format == Format.TEXT) {
+                line.append(template, start, open).append(fieldValue);
+            } else {
+                line.append(' ').append(template, open + 1, close).append('=').append(fieldValue);
+            }
+            start = close + 1;
+        }
+
+        if (entry.suppressed > 0) {
+            if (format == Format.TEXT) {
+                line.append(" (").append(entry.suppressed).append(" more since last shown)");
+            } else {
+                line.append(" suppressed=").append(entry.suppressed);
+            }
+        }
+        return line.toString();
+    }
+}
@@ -0,0 +1,110 @@
+package edu.cwru.sepia.agent;
+
+import java.util.Arrays;
+
+/**
+ * Cache of feature vectors keyed by (attacker, defender). It is a dense table indexed by unit ID, so a lookup
+ * is two array reads and never boxes.
+ * <p>
+ * Every cell is stamped with the epoch it was written in. Starting a new turn just bumps the epoch, which
+ * invalidates every cell at once without clearing or reallocating anything.
+ */
+public class FeatureCache {
+
+    private final int numFeatures;
+
+    //One more than the largest unit ID the table can hold
+    private int stride;
+    private int[] stamps;
+    private double[] values;
+
+    private int epoch = 1;
+
+    private long hits;
+    private long misses;
+
+    /**
+     * @param numFeatures Length of the feature vectors
+     * @param maxUnitId   The largest unit ID expected. The table grows if a larger one is used.
+     */
+    public FeatureCache(int numFeatures, int maxUnitId) {
+        this.numFeatures = numFeatures;
+        allocate(maxUnitId + 1);
+    }
+
+    private void allocate(int newStride) {
+        stride = newStride;
+        stamps = new int[stride * stride];
+        values = new double[stride * stride * numFeatures];
+    }
+
+    /**
+     * Invalidates everything in the cache. Call whenever the game state may have changed.
+     */
+    public void nextEpoch() {
+        epoch++;
+        if (epoch == 0) {
+            // Wrapped around, old stamps could look current again
+            Arrays.fill(stamps, 0);
+            epoch = 1;
+        }
+    }
+
+    /**
+     * Makes sure units up to maxUnitId can be cached. Growing drops the cached values.
+     */
+    public void ensureCapacity(int maxUnitId) {
+        if (maxUnitId >= stride) {
+            allocate(Math.max(maxUnitId + 1, stride * 2));
+        }
+    }
+
+    /**
+     * Copies the cached features of the pair into out.
+     *
+     * @return True on a hit, false if the pair has not been computed this epoch
+     */
+    public boolean get(int attackerId, int defenderId, double[] out) {
+        if (attackerId < stride && defenderId < stride) {
+            int cell = attackerId * stride + defenderId;
+            if (stamps[cell] == epoch) {
+                System.arraycopy(values, cell * numFeatures, out, 0, numFeatures);
+                hits++;
+                return true;
+            }
+        }
+        misses++;
+        return false;
+    }
+
+    /**
+     * Stores the features of the pair for the rest of this epoch.
+     */
+    public void put(int attackerId, int defenderId, double[] features) {
+        ensureCapacity(Math.max(attackerId, defenderId));
+        int cell = attackerId * stride + defenderId;
+        System.arraycopy(features, 0, values, cell * numFeatures, numFeatures);
+        stamps[cell] = epoch;
+    }
+
+    public long getHits() {
+        return hits;
+    }
+
+    public long getMisses() {
+        return misses;
+    }
+
+    /**
+     * @return Fraction of lookups that were hits, 0 if there were none
+     */
+    public double getHitRate() {
+        long lookups = hits + misses;
+        return lookups == 0 ? 0.0 : (double) hits / lookups;
+    }
+
+    public void resetCounters() {
+        hits = 0;
+        misses = 0;
+    }
+}
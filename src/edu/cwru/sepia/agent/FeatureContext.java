@@ -0,0 +1,61 @@
+package edu.cwru.sepia.agent;
+
+/**
+ * Everything the feature extractors read about one (attacker, defender) pair, fetched from the battle view in
+ * a single pass. Extractors only look at these fields, so adding a feature never adds another round of view
+ * lookups, and the attacker's data is reused while consecutive pairs share the same attacker.
+ */
+public class FeatureContext {
+
+    public int attackerId = -1;
+    public int attackerX;
+    public int attackerY;
+    public int attackerHp;
+
+    public int defenderId = -1;
+    public int defenderX;
+    public int defenderY;
+    public int defenderHp;
+
+    //Derived once per pair since several features need them
+    public int manhattanDistance;
+    public int chebyshevDistance;
+
+    //What happened on the previous turn
+    public CombatEventSummary events;
+
+    /**
+     * Fetches the data of a pair.
+     *
+     * @param view       The battle at the current turn
+     * @param events     What happened on the previous turn
+     * @param attackerId Our footman
+     * @param defenderId The enemy footman
+     */
+    public void load(BattleView view, CombatEventSummary events, int attackerId, int defenderId) {
+        this.events = events;
+        if (attackerId != this.attackerId) {
+            this.attackerId = attackerId;
+            attackerX = view.getXPosition(attackerId);
+            attackerY = view.getYPosition(attackerId);
+            attackerHp = view.getHP(attackerId);
+        }
+        this.defenderId = defenderId;
+        defenderX = view.getXPosition(defenderId);
+        defenderY = view.getYPosition(defenderId);
+        defenderHp = view.getHP(defenderId);
+
+        int dx = Math.abs(attackerX - defenderX);
+        int dy = Math.abs(attackerY - defenderY);
+        manhattanDistance = dx + dy;
+        chebyshevDistance = Math.max(dx, dy);
+    }
+
+    /**
+     * Forgets the cached attacker. Called whenever the units may have moved.
+     */
+    public void invalidate() {
+        attackerId = -1;
+        defenderId = -1;
+    }
+}
@@ -0,0 +1,22 @@
+package edu.cwru.sepia.agent;
+
+/**
+ * One feature of the Q-function. The built in ones are in {@link Features}. Any other class implementing this
+ * with a public no argument constructor can be used by naming its class in the features option.
+ * <p>
+ * Large turns are evaluated on several threads at once, each with its own context, so extract should only
+ * read the context and not keep state of its own.
+ */
+public interface FeatureExtractor {
+
+    /**
+     * @return Name the feature is configured and checkpointed under
+     */
+    String getName();
+
+    /**
+     * @param context The (attacker, defender) pair
+     * @return Value of the feature for the pair
+     */
+    double extract(FeatureContext context);
+}
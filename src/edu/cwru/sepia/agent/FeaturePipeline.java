@@ -0,0 +1,253 @@
+package edu.cwru.sepia.agent;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The features a run uses, in weight order. Configured with the features option, a comma separated list of
+ * {@link Features} names or class names of other {@link FeatureExtractor}s, and defaults to the assignment's four
+ * features. Weights are checkpointed with the feature names, so a checkpoint can be loaded into a run with a
+ * different feature set.
+ * <p>
+ * Extraction is fused: the units of a pair are read from the view once into a {@link FeatureContext} and every
+ * extractor works from that. It is also lazy: a feature whose weight is 0 and that is not being learned can't
+ * change a Q-value, so it is not computed and reads as 0. Features named in the frozenFeatures option are never
+ * learned, their weights stay what they were loaded or initialized as.
+ */
+public class FeaturePipeline {
+
+    /**
+     * The assignment's feature set, used when the features option is not given.
+     */
+    public static final String DEFAULT_FEATURES = "CONSTANT,ENEMY_ATTACKING_ME,INVERSE_DISTANCE,HEALTH_RATIO";
+
+    private final FeatureExtractor[] extractors;
+    private final String[] names;
+    private final boolean[] frozen;
+    private final boolean anyFrozen;
+
+    //Features computed right now, see activate
+    private final boolean[] active;
+    private final FeatureContext context = new FeatureContext();
+
+    /**
+     * @param features       Comma separated feature names, in weight order
+     * @param frozenFeatures Comma separated names of features whose weights are never updated, may be empty
+     */
+    public FeaturePipeline(String features, String frozenFeatures) {
+        List<FeatureExtractor> extractors = new ArrayList<>();
+        Set<String> seen = new HashSet<>();
+        for (String name : split(features)) {
+            FeatureExtractor extractor = extractor(name);
+            if (!seen.add(extractor.getName())) {
+                throw new IllegalArgumentException("Feature " + extractor.getName() + " is listed twice");
+            }
+            extractors.add(extractor);
+        }
+        if (extractors.isEmpty()) {
+            throw new IllegalArgumentException("At least one feature is needed");
+        }
+        this.extractors = extractors.toArray(new FeatureExtractor[0]);
+        this.names = new String[this.extractors.length];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = this.extractors[i].getName();
+        }
+
+        this.frozen = new boolean[names.length];
+        boolean anyFrozen = false;
+        for (String name : split(frozenFeatures)) {
+            int index = indexOf(name);
+            if (index < 0) {
+                throw new IllegalArgumentException("Frozen feature " + name + " is not one of the features " + Arrays.toString(names));
+            }
+            frozen[index] = true;
+            anyFrozen = true;
+        }
+        this.anyFrozen = anyFrozen;
+
+        this.active = new boolean[names.length];
+        Arrays.fill(active, true);
+    }
+
+    /**
+     * Builds the pipeline from name=value arguments, reading features and frozenFeatures and ignoring the rest.
+     */
+    public static FeaturePipeline fromArguments(String... args) {
+        String features = DEFAULT_FEATURES;
+        String frozenFeatures = "";
+        for (String arg : args) {
+            if (arg.startsWith("features=")) {
+                features = arg.substring("features=".length());
+            } else if (arg.startsWith("frozenFeatures=")) {
+                frozenFeatures = arg.substring("frozenFeatures=".length());
+            }
+        }
+        return new FeaturePipeline(features, frozenFeatures);
+    }
+
+    /**
+     * @return Every built in feature, for benchmarks that want to time all of them
+     */
+    public static FeaturePipeline allFeatures() {
+        StringBuilder names = new StringBuilder();
+        for (Features feature : Features.values()) {
+            names.append(names.length() == 0 ? "" : ",").append(feature.name());
+        }
+        return new FeaturePipeline(names.toString(), "");
+    }
+
+    //A built in feature by name, otherwise a class to instantiate
+    private static FeatureExtractor extractor(String name) {
+        for (Features feature : Features.values()) {
+            if (feature.name().equalsIgnoreCase(name)) {
+                return feature;
+            }
+        }
+        try {
+            return (FeatureExtractor) Class.forName(name).getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | ClassCastException ex) {
+            throw new IllegalArgumentException("Unknown feature " + name, ex);
+        }
+    }
+
+    private static List<String> split(String names) {
+        List<String> parts = new ArrayList<>();
+        for (String part : names.split(",")) {
+            if (!part.trim().isEmpty()) {
+                parts.add(part.trim());
+            }
+        }
+        return parts;
+    }
+
+    /**
+     * @return Number of features, which is also the number of weights
+     */
+    public int size() {
+        return extractors.length;
+    }
+
+    public String[] getNames() {
+        return names.clone();
+    }
+
+    public FeatureExtractor getExtractor(int index) {
+        return extractors[index];
+    }
+
+    /**
+     * @return Position of the feature with this name, -1 if it is not in the pipeline
+     */
+    public int indexOf(String name) {
+        for (int i = 0; i < names.length; i++) {
+            if (names[i].equalsIgnoreCase(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public boolean isFrozen(int index) {
+        return frozen[index];
+    }
+
+    public boolean isActive(int index) {
+        return active[index];
+    }
+
+    /**
+     * Decides which features are computed until the next call. A feature is skipped when its weight is 0 and
+     * it is either frozen or not being learned, since then it adds nothing to any Q-value.
+     *
+     * @param weights  Current weights
+     * @param learning True if weights may be updated before the next call
+     */
+    public void activate(double[] weights, boolean learning) {
+        for (int i = 0; i < active.length; i++) {
+            active[i] = weights[i] != 0.0 || (learning && !frozen[i]);
+        }
+    }
+
+    /**
+     * Computes the features of one (attacker, defender) pair. Skipped features are written as 0.
+     *
+     * @param view       The battle at the current turn
+     * @param events     What happened on the previous turn
+     * @param attackerId Our footman
+     * @param defenderId The enemy footman
+     * @param features   Array of size() entries to write into
+     * @return The features array that was passed in
+     */
+    public double[] extract(BattleView view, CombatEventSummary events, int attackerId, int defenderId, double[] features) {
+        return extract(context, view, events, attackerId, defenderId, features);
+    }
+
+    /**
+     * Same as {@link #extract(BattleView, CombatEventSummary, int, int, double[])} with a context of the
+     * caller's. Several threads can extract at once as long as each has its own context and output array.
+     */
+    public double[] extract(FeatureContext context, BattleView view, CombatEventSummary events, int attackerId, int defenderId, double[] features) {
+        context.load(view, events, attackerId, defenderId);
+        for (int i = 0; i < extractors.length; i++) {
+            features[i] = active[i] ? extractors[i].extract(context) : 0.0;
+        }
+        return features;
+    }
+
+    /**
+     * Forgets the unit data kept between pairs. Has to be called every turn, before the first extract.
+     */
+    public void nextTurn() {
+        context.invalidate();
+    }
+
+    /**
+     * @return True if any feature is frozen
+     */
+    public boolean hasFrozen() {
+        return anyFrozen;
+    }
+
+    /**
+     * Zeroes the frozen entries of a gradient so the update leaves their weights alone.
+     */
+    public void maskFrozen(double[] gradient) {
+        if (!anyFrozen) {
+            return;
+        }
+        for (int i = 0; i < frozen.length; i++) {
+            if (frozen[i]) {
+                gradient[i] = 0.0;
+            }
+        }
+    }
+
+    /**
+     * Lines weights saved with another feature set up with this one. Features that were saved keep their
+     * weight, new ones start at 0 and ones that are no longer used are dropped.
+     *
+     * @param savedNames   Feature names the weights were saved with
+     * @param savedWeights The saved weights
+     * @return Weights in this pipeline's order
+     */
+    public double[] remap(String[] savedNames, double[] savedWeights) {
+        double[] weights = new double[names.length];
+        for (int i = 0; i < savedNames.length; i++) {
+            int index = indexOf(savedNames[i]);
+            if (index >= 0) {
+                weights[index] = savedWeights[i];
+            }
+        }
+        return weights;
+    }
+
+    /**
+     * @return True if the names are exactly this pipeline's features, in order
+     */
+    public boolean matches(String[] savedNames) {
+        return Arrays.equals(names, savedNames);
+    }
+}
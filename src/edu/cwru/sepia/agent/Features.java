@@ -0,0 +1,83 @@
+package edu.cwru.sepia.agent;
+
+/**
+ * The built in features. The first four are the assignment's feature set and the default.
+ */
+public enum Features implements FeatureExtractor {
+
+    /**
+     * Constant, removes any offset from 0 in the Q-function.
+     */
+    CONSTANT {
+        @Override
+        public double extract(FeatureContext context) {
+            return 1.0;
+        }
+    },
+
+    /**
+     * 1 if the enemy hit this footman last turn. Fighting back against whoever is attacking you keeps the
+     * footman from walking away while it takes damage.
+     */
+    ENEMY_ATTACKING_ME {
+        @Override
+        public double extract(FeatureContext context) {
+            return context.events.isAttacking(context.defenderId, context.attackerId) ? 1.0 : 0.0;
+        }
+    },
+
+    /**
+     * 1 / Manhattan distance. Closer enemies can be attacked sooner.
+     */
+    INVERSE_DISTANCE {
+        @Override
+        public double extract(FeatureContext context) {
+            return 1.0 / context.manhattanDistance;
+        }
+    },
+
+    /**
+     * Our health over theirs. Fights we are likely to win are worth more.
+     */
+    HEALTH_RATIO {
+        @Override
+        public double extract(FeatureContext context) {
+            return ((double) context.attackerHp) / ((double) context.defenderHp);
+        }
+    },
+
+    /**
+     * 1 if the enemy can be attacked without moving.
+     */
+    IN_RANGE {
+        @Override
+        public double extract(FeatureContext context) {
+            return context.chebyshevDistance <= 1 ? 1.0 : 0.0;
+        }
+    },
+
+    /**
+     * 1 / the enemy's health. Weak enemies die sooner, and a dead enemy stops dealing damage.
+     */
+    ENEMY_WEAKNESS {
+        @Override
+        public double extract(FeatureContext context) {
+            return 1.0 / context.defenderHp;
+        }
+    },
+
+    /**
+     * 1 if the enemy took damage last turn, so attacking it focuses fire.
+     */
+    ENEMY_UNDER_ATTACK {
+        @Override
+        public double extract(FeatureContext context) {
+            return context.events.getDamageTaken(context.defenderId) > 0 ? 1.0 : 0.0;
+        }
+    };
+
+    @Override
+    public String getName() {
+        return name();
+    }
+}
@@ -0,0 +1,192 @@
+package edu.cwru.sepia.agent;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+
+/**
+ * Sparse tile coded features hashed into a large weight table, learned on top of the dense features of the
+ * {@link FeaturePipeline}. Every (attacker, defender) pair falls into exactly one tile of each tiling, for
+ * example one cell of the grid of relative positions, and each tile is hashed to one of 2^bits weights. The
+ * pair's contribution to its Q-value is the sum of the weights of its tiles.
+ * <p>
+ * All active tiles have the value 1, so a pair is stored as just its TILINGS weight indices. Evaluating and
+ * updating only touch those, whatever the size of the table.
+ * <p>
+ * The tilings:
+ * <ul>
+ * <li>Position of the enemy relative to the footman, each axis clamped to 8 squares.</li>
+ * <li>Health of the footman and of the enemy, in buckets of 20 HP.</li>
+ * <li>How many of our footmen hit the enemy last turn, with the enemy's health.</li>
+ * <li>How many enemies hit the footman last turn, with the footman's health.</li>
+ * <li>Distance to the enemy, whether it is hitting the footman and how many footmen are hitting it.</li>
+ * </ul>
+ * Turned on with hashedBits=N for a table of 2^N weights. Around 18 to 22 bits keeps collisions rare.
+ * <p>
+ * A bitset remembers which weights were ever updated, so saving the table only visits 1 word in 64 plus the
+ * weights in use instead of scanning all 2^N of them.
+ */
+public class HashedFeatures {
+
+    /**
+     * Tiles, and so weight indices, per pair.
+     */
+    public static final int TILINGS = 5;
+
+    private static final int MAX_OFFSET = 8;
+    private static final int HP_BUCKET = 20;
+    private static final int MAX_HP_BUCKET = 7;
+    private static final int MAX_ATTACKERS = 4;
+    private static final int MAX_DISTANCE = 16;
+
+    private final int bits;
+    private final int mask;
+    final double[] weights;
+    //Bit i is set once weight i has been updated or loaded
+    private final long[] touched;
+
+    private static final VarHandle WORDS = MethodHandles.arrayElementVarHandle(long[].class);
+
+    /**
+     * @param bits log2 of the number of weights, which all start at 0
+     */
+    public HashedFeatures(int bits) {
+        if (bits < 1 || bits > 30) {
+            throw new IllegalArgumentException("hashedBits must be between 1 and 30, got " + bits);
+        }
+        this.bits = bits;
+        this.mask = (1 << bits) - 1;
+        this.weights = new double[1 << bits];
+        this.touched = new long[Math.max(1, (1 << bits) >>> 6)];
+    }
+
+    /**
+     * @return The table asked for by a hashedBits=N argument, or null if there is none or it is 0
+     */
+    public static HashedFeatures fromArguments(String... args) {
+        for (String arg : args) {
+            if (arg.startsWith("hashedBits=")) {
+                int bits = Integer.parseInt(arg.substring("hashedBits=".length()).trim());
+                return bits > 0 ? new HashedFeatures(bits) : null;
+            }
+        }
+        return null;
+    }
+
+    public int getBits() {
+        return bits;
+    }
+
+    /**
+     * Writes the weight index of each of the pair's tiles.
+     *
+     * @param context The (attacker, defender) pair, already loaded
+     * @param tiles   Where to write TILINGS indices
+     * @param offset  First index to write
+     */
+    public void encode(FeatureContext context, int[] tiles, int offset) {
+        int dx = clamp(context.defenderX - context.attackerX, -MAX_OFFSET, MAX_OFFSET);
+        int dy = clamp(context.defenderY - context.attackerY, -MAX_OFFSET, MAX_OFFSET);
+        int attackerHp = clamp(context.attackerHp / HP_BUCKET, 0, MAX_HP_BUCKET);
+        int defenderHp = clamp(context.defenderHp / HP_BUCKET, 0, MAX_HP_BUCKET);
+        int onDefender = Math.min(context.events.getAttackerCount(context.defenderId), MAX_ATTACKERS);
+        int onAttacker = Math.min(context.events.getAttackerCount(context.attackerId), MAX_ATTACKERS);
+        int hitsMe = context.events.isAttacking(context.defenderId, context.attackerId) ? 1 : 0;
+        int distance = Math.min(context.chebyshevDistance, MAX_DISTANCE);
+
+        tiles[offset] = index(0, (dx + MAX_OFFSET) << 8 | (dy + MAX_OFFSET));
+        tiles[offset + 1] = index(1, attackerHp << 8 | defenderHp);
+        tiles[offset + 2] = index(2, onDefender << 8 | defenderHp);
+        tiles[offset + 3] = index(3, onAttacker << 8 | attackerHp);
+        tiles[offset + 4] = index(4, distance << 16 | hitsMe << 8 | onDefender);
+    }
+
+    //Hashes a tile of a tiling to a weight, with the finalizer of SplittableRandom so nearby tiles spread out
+    private int index(int tiling, int tile) {
+        long z = ((long) tiling << 32 | tile) + 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return (int) (z ^ (z >>> 31)) & mask;
+    }
+
+    private static int clamp(int value, int min, int max) {
+        return Math.max(min, Math.min(max, value));
+    }
+
+    /**
+     * @return Sum of the weights of the TILINGS tiles starting at offset
+     */
+    public double value(int[] tiles, int offset) {
+        double sum = 0.0;
+        for (int t = 0; t < TILINGS; t++) {
+            sum += weights[tiles[offset + t]];
+        }
+        return sum;
+    }
+
+    /**
+     * Adds step to the weight of each of the TILINGS tiles starting at offset.
+     *
+     * @param updater How the table, which workers may share, is written to
+     */
+    public void update(int[] tiles, int offset, double step, WeightUpdater updater) {
+        for (int t = 0; t < TILINGS; t++) {
+            int index = tiles[offset + t];
+            updater.add(weights, index, step);
+            touch(index);
+        }
+    }
+
+    //Marks a weight as in use. The bit is only set atomically the first time, later updates just read it
+    private void touch(int index) {
+        long bit = 1L << index;
+        if ((touched[index >>> 6] & bit) == 0) {
+            WORDS.getAndBitwiseOr(touched, index >>> 6, bit);
+        }
+    }
+
+    /**
+     * @return A table with the same weights, for evaluating a snapshot while this one keeps learning
+     */
+    public HashedFeatures copy() {
+        HashedFeatures copy = new HashedFeatures(bits);
+        System.arraycopy(weights, 0, copy.weights, 0, weights.length);
+        System.arraycopy(touched, 0, copy.touched, 0, touched.length);
+        return copy;
+    }
+
+    /**
+     * @return Indices of the weights that are not 0, in increasing order
+     */
+    public int[] nonZeroIndices() {
+        int[] indices = new int[64];
+        int count = 0;
+        for (int word = 0; word < touched.length; word++) {
+            for (long bits = touched[word]; bits != 0; bits &= bits - 1) {
+                int index = word << 6 | Long.numberOfTrailingZeros(bits);
+                if (weights[index] != 0.0) {
+                    if (count == indices.length) {
+                        indices = Arrays.copyOf(indices, count * 2);
+                    }
+                    indices[count++] = index;
+                }
+            }
+        }
+        return Arrays.copyOf(indices, count);
+    }
+
+    /**
+     * Replaces the weights with the given sparse ones, everything else becomes 0.
+     *
+     * @param indices Weight indices
+     * @param values  Weight of each index
+     */
+    public void load(int[] indices, double[] values) {
+        Arrays.fill(weights, 0.0);
+        Arrays.fill(touched, 0L);
+        for (int i = 0; i < indices.length; i++) {
+            weights[indices[i]] = values[i];
+            touch(indices[i]);
+        }
+    }
+}
@@ -0,0 +1,344 @@
+package edu.cwru.sepia.agent;
+
+import edu.cwru.sepia.action.Action;
+import edu.cwru.sepia.environment.model.history.History;
+import edu.cwru.sepia.environment.model.state.State;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Plays a trained policy without learning. The weights are loaded once, from the checkpoint RLAgent writes or
+ * failing that from agent_weights/weights.txt, and every decision is the greedy one. There are no rewards, no
+ * feature history, no exploration and nothing is saved.
+ * <p>
+ * Deciding does not allocate: the footmen, their targets and the orders of a turn live in int arrays indexed by
+ * unit ID, and SEPIA actions are created once per (footman, enemy) pair and reused. Like RLAgent, only footmen
+ * that were hit, lost their target or whose action ended are given a new order.
+ * <p>
+ * Features come from a {@link FeaturePipeline} built from the names saved in the checkpoint, so the policy sees
+ * the features it was trained with. Features with a weight of 0 are never computed. If the checkpoint has
+ * {@link HashedFeatures}, their tiles are added to every Q-value as well.
+ * <p>
+ * Every turn is held to a latency budget. Once it is used up, footmen that still have a living target keep
+ * their order instead of being re-decided, and the turn counts as over budget. Footmen without a target are
+ * always decided.
+ * <p>
+ * Arguments are name=value: checkpoint=path to load a different checkpoint, latencyBudgetUs=500 for the budget.
+ */
+public class InferenceAgent extends Agent {
+
+    private static final long serialVersionUID = 1L;
+
+    private final double[] weights;
+    private final FeaturePipeline featurePipeline;
+    private final double[] features;
+    private final long latencyBudgetNanos;
+
+    //Null when the policy has no hashed features
+    private final HashedFeatures hashed;
+    private final int[] tiles = new int[HashedFeatures.TILINGS];
+    private final FeatureContext context = new FeatureContext();
+
+    private final SepiaBattleView sepiaView = new SepiaBattleView();
+    private final UnitSnapshot snapshot = new UnitSnapshot();
+    private CombatEventSummary lastTurnEvents = new CombatEventSummary(0);
+
+    //Living units
+    private int[] myFootmen = new int[0];
+    private int myFootmanCount;
+    private int[] enemyFootmen = new int[0];
+    private int enemyFootmanCount;
+
+    //Enemy each footman is attacking, by unit ID, -1 for none
+    private int[] targetOf = new int[0];
+
+    //Orders given this turn
+    private int[] orderedUnits = new int[0];
+    private int[] orderedTargets = new int[0];
+    private int orderCount;
+
+    //SEPIA attacks by attacker * actionStride + defender, created the first time they are needed
+    private Action[] primitiveAttacks = new Action[0];
+    private Action[] compoundAttacks = new Action[0];
+    private int actionStride;
+
+    //Actions handed to SEPIA
+    private final Map<Integer, Action> actions = new HashMap<>();
+
+    private final LatencyHistogram turnLatency = new LatencyHistogram();
+    private long turnsOverBudget;
+    private int episode;
+
+    public InferenceAgent(int playernum, String[] args) {
+        super(playernum);
+        Map<String, String> options = RLAgent.parseOptions(args, 0);
+        Path checkpointPath = options.containsKey("checkpoint") ? Paths.get(options.get("checkpoint")) : RLAgent.CHECKPOINT_PATH;
+        WeightCheckpointer.Checkpoint checkpoint = loadCheckpoint(checkpointPath);
+        this.weights = checkpoint.weights;
+        this.featurePipeline = new FeaturePipeline(String.join(",", checkpoint.featureNames), "");
+        this.features = new double[featurePipeline.size()];
+        this.hashed = checkpoint.hashed;
+        featurePipeline.activate(weights, false);
+        this.latencyBudgetNanos = TimeUnit.MICROSECONDS.toNanos(Long.parseLong(options.getOrDefault("latencyBudgetUs", "500")));
+    }
+
+    /**
+     * Plays the given weights with the default features, for benchmarks and evaluation on the simulator.
+     *
+     * @param playernum          Player this agent controls
+     * @param weights            Trained weights, not modified
+     * @param latencyBudgetNanos Time each turn may take
+     */
+    public InferenceAgent(int playernum, double[] weights, long latencyBudgetNanos) {
+        this(playernum, weights, new FeaturePipeline(FeaturePipeline.DEFAULT_FEATURES, ""), latencyBudgetNanos);
+    }
+
+    /**
+     * Plays the given weights with the given features.
+     *
+     * @param playernum          Player this agent controls
+     * @param weights            Trained weights, not modified
+     * @param featurePipeline    Features the weights were trained with, used only by this agent
+     * @param latencyBudgetNanos Time each turn may take
+     */
+    public InferenceAgent(int playernum, double[] weights, FeaturePipeline featurePipeline, long latencyBudgetNanos) {
+        this(playernum, weights, featurePipeline, null, latencyBudgetNanos);
+    }
+
+    /**
+     * Plays the given weights and hashed features.
+     *
+     * @param playernum          Player this agent controls
+     * @param weights            Trained weights, not modified
+     * @param featurePipeline    Features the weights were trained with, used only by this agent
+     * @param hashed             Trained hashed features, not modified, or null
+     * @param latencyBudgetNanos Time each turn may take
+     */
+    public InferenceAgent(int playernum, double[] weights, FeaturePipeline featurePipeline, HashedFeatures hashed, long latencyBudgetNanos) {
+        super(playernum);
+        if (weights.length != featurePipeline.size()) {
+            throw new IllegalArgumentException("Got " + weights.length + " weights for " + featurePipeline.size() + " features");
+        }
+        this.weights = weights.clone();
+        this.featurePipeline = featurePipeline;
+        this.features = new double[featurePipeline.size()];
+        this.hashed = hashed;
+        featurePipeline.activate(this.weights, false);
+        this.latencyBudgetNanos = latencyBudgetNanos;
+    }
+
+    private static WeightCheckpointer.Checkpoint loadCheckpoint(Path checkpointPath) {
+        WeightCheckpointer.Checkpoint checkpoint = WeightCheckpointer.read(checkpointPath);
+        if (checkpoint != null) {
+            return checkpoint;
+        }
+        // Fall back to the text file saveWeights writes
+        double[] weights = RLAgent.readWeightsFile();
+        if (weights == null) {
+            throw new IllegalStateException("No trained weights in " + checkpointPath + " or agent_weights/weights.txt");
+        }
+        // The text file has no feature names, it can only have been written with the default features
+        return new WeightCheckpointer.Checkpoint(weights, FeaturePipeline.DEFAULT_FEATURES.split(","), 0, null);
+    }
+
+    @Override
+    public Map<Integer, Action> initialStep(State.StateView stateView, History.HistoryView historyView) {
+        startEpisode(sepiaView.update(stateView, historyView));
+        return middleStep(stateView, historyView);
+    }
+
+    @Override
+    public Map<Integer, Action> middleStep(State.StateView stateView, History.HistoryView historyView) {
+        BattleView view = sepiaView.update(stateView, historyView);
+        int orders = decide(view);
+        if (orders == 0) {
+            return null;
+        }
+        // SEPIA is done with last turn's actions before it asks for new ones, so one map is refilled every turn
+        actions.clear();
+        for (int i = 0; i < orders; i++) {
+            int footmanId = orderedUnits[i];
+            int enemyId = orderedTargets[i];
+            actions.put(footmanId, attack(footmanId, enemyId, snapshot.inRange(footmanId, enemyId)));
+        }
+        return actions;
+    }
+
+    @Override
+    public void terminalStep(State.StateView stateView, History.HistoryView historyView) {
+        endEpisode();
+    }
+
+    /**
+     * Reads the units of a new battle.
+     */
+    public void startEpisode(BattleView source) {
+        BattleView view = snapshot.capture(source, playernum, RLAgent.ENEMY_PLAYERNUM);
+        int maxUnitId = 0;
+        for (Integer unitId : view.getAllUnitIds()) {
+            maxUnitId = Math.max(maxUnitId, unitId);
+        }
+        lastTurnEvents = new CombatEventSummary(maxUnitId);
+        if (targetOf.length <= maxUnitId) {
+            targetOf = new int[maxUnitId + 1];
+            orderedUnits = new int[maxUnitId + 1];
+            orderedTargets = new int[maxUnitId + 1];
+            myFootmen = new int[maxUnitId + 1];
+            enemyFootmen = new int[maxUnitId + 1];
+        }
+        if (actionStride <= maxUnitId) {
+            actionStride = maxUnitId + 1;
+            primitiveAttacks = new Action[actionStride * actionStride];
+            compoundAttacks = new Action[actionStride * actionStride];
+        }
+        Arrays.fill(targetOf, -1);
+
+        myFootmanCount = 0;
+        for (Integer unitId : view.getUnitIds(playernum)) {
+            if (snapshot.isFootman(unitId)) {
+                myFootmen[myFootmanCount++] = unitId;
+            }
+        }
+        enemyFootmanCount = 0;
+        for (Integer unitId : view.getUnitIds(RLAgent.ENEMY_PLAYERNUM)) {
+            if (snapshot.isFootman(unitId)) {
+                enemyFootmen[enemyFootmanCount++] = unitId;
+            }
+        }
+    }
+
+    /**
+     * Decides the orders of one turn. They are read back with {@link #getOrderedUnit} and
+     * {@link #getOrderedTarget}.
+     *
+     * @param source The battle at the current turn
+     * @return Number of footmen given a new order
+     */
+    public int decide(BattleView source) {
+        long start = System.nanoTime();
+        BattleView view = snapshot.capture(source, playernum, RLAgent.ENEMY_PLAYERNUM);
+        long deadline = start + latencyBudgetNanos;
+        boolean overBudget = false;
+
+        lastTurnEvents.build(view, playernum, view.getTurnNumber() - 1);
+        context.invalidate();
+        if (lastTurnEvents.getDeathEventCount() > 0) {
+            myFootmanCount = removeDead(myFootmen, myFootmanCount);
+            enemyFootmanCount = removeDead(enemyFootmen, enemyFootmanCount);
+        }
+
+        orderCount = 0;
+        if (enemyFootmanCount > 0) {
+            for (int i = 0; i < myFootmanCount; i++) {
+                int footmanId = myFootmen[i];
+                int target = targetOf[footmanId];
+                boolean hasTarget = target >= 0 && !lastTurnEvents.hasDied(target);
+                if (hasTarget && !lastTurnEvents.hasActionEnded(footmanId) && lastTurnEvents.getDamageTaken(footmanId) == 0) {
+                    continue;
+                }
+                if (hasTarget && System.nanoTime() - deadline > 0) {
+                    // Out of time, this footman keeps going after its current target
+                    overBudget = true;
+                    continue;
+                }
+                int enemyId = greedyTarget(view, footmanId);
+                targetOf[footmanId] = enemyId;
+                orderedUnits[orderCount] = footmanId;
+                orderedTargets[orderCount] = enemyId;
+                orderCount++;
+            }
+        }
+
+        long elapsed = System.nanoTime() - start;
+        turnLatency.record(elapsed);
+        if (overBudget || elapsed > latencyBudgetNanos) {
+            turnsOverBudget++;
+        }
+        return orderCount;
+    }
+
+    public void endEpisode() {
+        episode++;
+    }
+
+    //Enemy with the largest Q-value, the first one on ties
+    private int greedyTarget(BattleView view, int footmanId) {
+        int best = -1;
+        double bestQ = Double.NEGATIVE_INFINITY;
+        for (int j = 0; j < enemyFootmanCount; j++) {
+            int enemyId = enemyFootmen[j];
+            double q = RLAgent.dot(weights, featurePipeline.extract(context, view, lastTurnEvents, footmanId, enemyId, features));
+            if (hashed != null) {
+                hashed.encode(context, tiles, 0);
+                q += hashed.value(tiles, 0);
+            }
+            if (q > bestQ || best < 0) {
+                bestQ = q;
+                best = enemyId;
+            }
+        }
+        return best;
+    }
+
+    private int removeDead(int[] units, int count) {
+        int kept = 0;
+        for (int i = 0; i < count; i++) {
+            if (!lastTurnEvents.hasDied(units[i])) {
+                units[kept++] = units[i];
+            }
+        }
+        return kept;
+    }
+
+    private Action attack(int footmanId, int enemyId, boolean inRange) {
+        Action[] actions = inRange ? primitiveAttacks : compoundAttacks;
+        int index = footmanId * actionStride + enemyId;
+        if (actions[index] == null) {
+            actions[index] = inRange ? Action.createPrimitiveAttack(footmanId, enemyId) : Action.createCompoundAttack(footmanId, enemyId);
+        }
+        return actions[index];
+    }
+
+    public int getOrderedUnit(int order) {
+        return orderedUnits[order];
+    }
+
+    public int getOrderedTarget(int order) {
+        return orderedTargets[order];
+    }
+
+    /**
+     * @return Time taken by every turn decided so far
+     */
+    public LatencyHistogram getTurnLatency() {
+        return turnLatency;
+    }
+
+    /**
+     * @return Turns that used up their latency budget
+     */
+    public long getTurnsOverBudget() {
+        return turnsOverBudget;
+    }
+
+    public int getEpisode() {
+        return episode;
+    }
+
+    @Override
+    public void savePlayerData(OutputStream outputStream) {
+
+    }
+
+    @Override
+    public void loadPlayerData(InputStream inputStream) {
+
+    }
+}
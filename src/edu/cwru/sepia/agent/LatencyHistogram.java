@@ -0,0 +1,104 @@
+package edu.cwru.sepia.agent;
+
+import java.util.Arrays;
+
+/**
+ * Histogram of durations in nanoseconds. Buckets are powers of two split into four, so recording is a few
+ * bit operations and an array increment, and percentiles are accurate to within about 12%.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 2;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    private final long[] counts = new long[64 * SUB_BUCKETS];
+    private long count;
+    private long total;
+    private long max;
+
+    public void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        counts[bucketOf(nanos)]++;
+        count++;
+        total += nanos;
+        if (nanos > max) {
+            max = nanos;
+        }
+    }
+
+    private static int bucketOf(long nanos) {
+        if (nanos < SUB_BUCKETS) {
+            return (int) nanos;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+        int subBucket = (int) (nanos >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent << SUB_BUCKET_BITS) | subBucket;
+    }
+
+    //Middle of the range of values that fall in the bucket
+    private static long valueOf(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int exponent = bucket >>> SUB_BUCKET_BITS;
+        int subBucket = bucket & (SUB_BUCKETS - 1);
+        long width = 1L << (exponent - SUB_BUCKET_BITS);
+        return ((SUB_BUCKETS | subBucket) * width) + width / 2;
+    }
+
+    /**
+     * @param percentile Between 0 and 100
+     * @return Approximate duration below which the given percentage of the recorded durations fall
+     */
+    public long getPercentile(double percentile) {
+        if (count == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(percentile / 100.0 * count);
+        long seen = 0;
+        for (int bucket = 0; bucket < counts.length; bucket++) {
+            seen += counts[bucket];
+            if (seen >= rank && counts[bucket] > 0) {
+                return Math.min(valueOf(bucket), max);
+            }
+        }
+        return max;
+    }
+
+    /**
+     * Adds everything recorded in another histogram to this one.
+     */
+    public void add(LatencyHistogram other) {
+        for (int bucket = 0; bucket < counts.length; bucket++) {
+            counts[bucket] += other.counts[bucket];
+        }
+        count += other.count;
+        total += other.total;
+        max = Math.max(max, other.max);
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public long getTotal() {
+        return total;
+    }
+
+    public long getMax() {
+        return max;
+    }
+
+    public double getMean() {
+        return count == 0 ? 0.0 : (double) total / count;
+    }
+
+    public void reset() {
+        Arrays.fill(counts, 0);
+        count = 0;
+        total = 0;
+        max = 0;
+    }
+}
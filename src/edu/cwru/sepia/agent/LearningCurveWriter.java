@@ -0,0 +1,82 @@
+package edu.cwru.sepia.agent;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Streams the learning curve to a CSV file, one row per evaluation block, so convergence can be watched while
+ * a long run is still going. Every row is flushed as it is written, and a block only ends every 15 episodes,
+ * so this costs nothing noticeable on the game thread.
+ * <p>
+ * games_played and average_reward are the columns printTestData prints. The other columns describe the spread
+ * of the block's test episodes.
+ */
+public class LearningCurveWriter {
+
+    private final Path path;
+    private final boolean append;
+    private BufferedWriter writer;
+
+    /**
+     * @param path File to write, replaced if it exists
+     */
+    public LearningCurveWriter(Path path) {
+        this(path, false);
+    }
+
+    /**
+     * @param path   File to write
+     * @param append True to add rows to the file if it exists, for a resumed run, false to replace it
+     */
+    public LearningCurveWriter(Path path, boolean append) {
+        this.path = path;
+        this.append = append;
+    }
+
+    /**
+     * Appends the row of an evaluation block that just finished.
+     *
+     * @param episode     Episode the block ended on
+     * @param gamesPlayed Training games played before the block, as printTestData counts them
+     * @param testRewards Average reward of each test episode in the block
+     */
+    public void write(int episode, int gamesPlayed, RunningStats testRewards) {
+        try {
+            if (writer == null) {
+                if (path.toAbsolutePath().getParent() != null) {
+                    Files.createDirectories(path.toAbsolutePath().getParent());
+                }
+                if (append && Files.exists(path)) {
+                    writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+                } else {
+                    writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+                            StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+                    writer.write("episode,games_played,average_reward,stddev,min,max,test_episodes");
+                    writer.newLine();
+                }
+            }
+            writer.write(String.format("%d,%d,%.4f,%.4f,%.4f,%.4f,%d", episode, gamesPlayed, testRewards.getMean(),
+                    testRewards.getStandardDeviation(), testRewards.getMin(), testRewards.getMax(), testRewards.getCount()));
+            writer.newLine();
+            writer.flush();
+        } catch (IOException ex) {
+            System.err.println("Failed to write learning curve. Reason: " + ex.getMessage());
+        }
+    }
+
+    public void close() {
+        if (writer == null) {
+            return;
+        }
+        try {
+            writer.close();
+        } catch (IOException ex) {
+            System.err.println("Failed to close learning curve. Reason: " + ex.getMessage());
+        }
+        writer = null;
+    }
+}
@@ -0,0 +1,224 @@
+package edu.cwru.sepia.agent;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Fits weights to transition traces written by {@link TransitionRecorder}, without playing any games. The
+ * traces are memory mapped and swept front to back, so an epoch runs about as fast as the records can be read.
+ * <p>
+ * Two TD targets are available:
+ * <ul>
+ * <li>sarsa, the default: reward plus gamma times the Q-value of the footman's next recorded transition in the
+ * same episode, scored with the weights being fitted, and just the reward at the end of an episode. This is
+ * what makes it possible to try another gamma or learning rate on recorded play.</li>
+ * <li>recorded: reward plus gamma times the best next Q-value the agent saw when it recorded the transition,
+ * which replays what the agent itself did.</li>
+ * </ul>
+ * Usage: OfflineTrainer &lt;trace&gt; [&lt;trace&gt; ...] [name=value ...] with the options learningRate=0.0001,
+ * gamma=0.9, epochs=10, target=sarsa, seed=12345 for the random initial weights, checkpoint=path to start from
+ * a checkpoint instead, and out=agent_weights/offline.ckpt for the fitted weights.
+ */
+public class OfflineTrainer {
+
+    /**
+     * One memory mapped trace file.
+     */
+    static class Trace {
+        final Path path;
+        final MappedByteBuffer buffer;
+        final String[] featureNames;
+        final int recordBytes;
+        final int firstRecord;
+        final int recordCount;
+        //Index of the same footman's next transition in the same episode, -1 for the last one
+        final int[] next;
+
+        Trace(Path path) throws IOException {
+            this.path = path;
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                if (channel.size() > Integer.MAX_VALUE) {
+                    throw new IOException(path + " is over 2 GB, record into several traces instead");
+                }
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+            if (buffer.getInt() != TransitionRecorder.MAGIC || buffer.getInt() != TransitionRecorder.VERSION) {
+                throw new IOException(path + " is not a version " + TransitionRecorder.VERSION + " transition trace");
+            }
+            featureNames = new String[buffer.getInt()];
+            for (int i = 0; i < featureNames.length; i++) {
+                byte[] name = new byte[buffer.getInt()];
+                buffer.get(name);
+                featureNames[i] = new String(name, StandardCharsets.UTF_8);
+            }
+            recordBytes = TransitionRecorder.recordBytes(featureNames.length);
+            firstRecord = buffer.position();
+            // A run that was killed can leave a partial record at the end, it is ignored
+            recordCount = (buffer.limit() - firstRecord) / recordBytes;
+
+            next = new int[recordCount];
+            Map<Long, Integer> following = new HashMap<>();
+            for (int i = recordCount - 1; i >= 0; i--) {
+                int offset = offset(i);
+                long key = ((long) buffer.getInt(offset) << 32) | (buffer.getInt(offset + 2 * Integer.BYTES) & 0xFFFFFFFFL);
+                Integer nextIndex = following.put(key, i);
+                next[i] = nextIndex == null ? -1 : nextIndex;
+            }
+        }
+
+        int offset(int record) {
+            return firstRecord + record * recordBytes;
+        }
+
+        double reward(int record) {
+            return buffer.getDouble(offset(record) + 3 * Integer.BYTES);
+        }
+
+        double nextQ(int record) {
+            return buffer.getDouble(offset(record) + 3 * Integer.BYTES + Double.BYTES);
+        }
+
+        double[] features(int record, double[] out) {
+            int offset = offset(record) + TransitionRecorder.RECORD_HEADER_BYTES;
+            for (int f = 0; f < out.length; f++) {
+                out[f] = buffer.getDouble(offset + f * Double.BYTES);
+            }
+            return out;
+        }
+    }
+
+    private final List<Trace> traces = new ArrayList<>();
+    private final String[] featureNames;
+
+    /**
+     * Maps the traces. They all have to be recorded with the same features.
+     */
+    public OfflineTrainer(List<Path> paths) throws IOException {
+        for (Path path : paths) {
+            Trace trace = new Trace(path);
+            if (!traces.isEmpty() && !Arrays.equals(trace.featureNames, traces.get(0).featureNames)) {
+                throw new IOException(path + " was recorded with features " + Arrays.toString(trace.featureNames)
+                        + ", not " + Arrays.toString(traces.get(0).featureNames));
+            }
+            traces.add(trace);
+        }
+        if (traces.isEmpty()) {
+            throw new IllegalArgumentException("No traces given");
+        }
+        featureNames = traces.get(0).featureNames;
+    }
+
+    public String[] getFeatureNames() {
+        return featureNames.clone();
+    }
+
+    public long getRecordCount() {
+        long count = 0;
+        for (Trace trace : traces) {
+            count += trace.recordCount;
+        }
+        return count;
+    }
+
+    /**
+     * Runs TD updates over every recorded transition.
+     *
+     * @param weights      Initial weights, updated in place
+     * @param learningRate Step size
+     * @param gamma        Discount factor
+     * @param epochs       Sweeps over the traces
+     * @param sarsa        True for the sarsa target, false to use the recorded next Q-values
+     * @return The weights that were passed in
+     */
+    public double[] fit(double[] weights, double learningRate, double gamma, int epochs, boolean sarsa) {
+        double[] features = new double[featureNames.length];
+        double[] nextFeatures = new double[featureNames.length];
+        for (int epoch = 0; epoch < epochs; epoch++) {
+            for (Trace trace : traces) {
+                for (int record = 0; record < trace.recordCount; record++) {
+                    trace.features(record, features);
+                    double future;
+                    if (!sarsa) {
+                        future = trace.nextQ(record);
+                    } else if (trace.next[record] >= 0) {
+                        future = RLAgent.dot(weights, trace.features(trace.next[record], nextFeatures));
+                    } else {
+                        future = 0.0;
+                    }
+                    double step = learningRate * (trace.reward(record) + gamma * future - RLAgent.dot(weights, features));
+                    for (int f = 0; f < weights.length; f++) {
+                        weights[f] += step * features[f];
+                    }
+                }
+            }
+        }
+        return weights;
+    }
+
+    public static void main(String[] args) throws IOException {
+        List<Path> paths = new ArrayList<>();
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            int separator = arg.indexOf('=');
+            if (separator > 0) {
+                options.put(arg.substring(0, separator), arg.substring(separator + 1));
+            } else {
+                paths.add(Paths.get(arg));
+            }
+        }
+        if (paths.isEmpty()) {
+            System.err.println("Usage: OfflineTrainer <trace> [<trace> ...] [name=value ...]");
+            System.exit(1);
+        }
+
+        OfflineTrainer trainer = new OfflineTrainer(paths);
+        String[] featureNames = trainer.getFeatureNames();
+        long seed = Long.parseLong(options.getOrDefault("seed", "12345"));
+        double[] weights = ParallelTrainer.initialWeights(seed, featureNames.length);
+        // Traces only hold the dense features, hashed ones are carried over from the checkpoint as they are
+        HashedFeatures hashed = null;
+        if (options.containsKey("checkpoint")) {
+            WeightCheckpointer.Checkpoint checkpoint = WeightCheckpointer.read(Paths.get(options.get("checkpoint")));
+            if (checkpoint == null) {
+                throw new IOException("Can't read checkpoint " + options.get("checkpoint"));
+            }
+            weights = new FeaturePipeline(String.join(",", featureNames), "").remap(checkpoint.featureNames, checkpoint.weights);
+            hashed = checkpoint.hashed;
+        }
+
+        int epochs = Integer.parseInt(options.getOrDefault("epochs", "10"));
+        long start = System.nanoTime();
+        trainer.fit(weights, Double.parseDouble(options.getOrDefault("learningRate", "0.0001")),
+                Double.parseDouble(options.getOrDefault("gamma", "0.9")), epochs,
+                !options.getOrDefault("target", "sarsa").equals("recorded"));
+        long nanos = System.nanoTime() - start;
+
+        long updates = trainer.getRecordCount() * epochs;
+        System.out.println(String.format("Fitted %d transitions x %d epochs in %.2f s, %.1f million updates/sec",
+                trainer.getRecordCount(), epochs, nanos / 1e9, updates / (nanos / 1e3)));
+        System.out.println("Weights: " + Arrays.toString(featureNames) + " = " + Arrays.toString(weights));
+        for (double weight : weights) {
+            if (!Double.isFinite(weight)) {
+                System.err.println("The weights diverged, try a smaller learningRate.");
+                break;
+            }
+        }
+
+        Path out = Paths.get(options.getOrDefault("out", "agent_weights/offline.ckpt"));
+        WeightCheckpointer checkpointer = new WeightCheckpointer(out);
+        checkpointer.save(weights, featureNames, hashed, 0, new Random(seed));
+        checkpointer.close();
+        System.out.println("Wrote " + out);
+    }
+}
@@ -0,0 +1,149 @@
+package edu.cwru.sepia.agent;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Supplier;
+
+/**
+ * Trains with several independent episode workers at once. Every worker has its own RLAgent and its own
+ * environment, and they all update the same weight vector without locking.
+ * <p>
+ * Each worker gets a random seed split off a root seed, so the seed a worker gets only depends on the root
+ * seed and the worker's index.
+ */
+public class ParallelTrainer {
+
+    private final Supplier<EpisodeDriver> drivers;
+    private final WeightUpdater updater;
+    private final long seed;
+    private final String[] options;
+
+    /**
+     * @param drivers Creates a new environment for each worker
+     * @param updater How workers write into the shared weights
+     * @param seed    Root seed the worker seeds are split from
+     * @param options name=value agent options passed to every worker
+     */
+    public ParallelTrainer(Supplier<EpisodeDriver> drivers, WeightUpdater updater, long seed, String... options) {
+        this.drivers = drivers;
+        this.updater = updater;
+        this.seed = seed;
+        this.options = options;
+    }
+
+    /**
+     * Random initial weights between -1 and 1, drawn the same way RLAgent does: with java.util.Random, so seed
+     * 12345 gives the weights a SEPIA run starts from.
+     *
+     * @param seed Seed of the weights
+     * @param size Number of features, see {@link FeaturePipeline#size()}
+     */
+    public static double[] initialWeights(long seed, int size) {
+        Random random = new Random(seed);
+        double[] weights = new double[size];
+        for (int i = 0; i < weights.length; i++) {
+            weights[i] = random.nextDouble() * 2 - 1;
+        }
+        return weights;
+    }
+
+    /**
+     * Runs the workers to completion.
+     *
+     * @param threads           Number of workers, each on its own thread
+     * @param episodesPerWorker Episodes each worker plays
+     * @param weights           Shared weights, updated in place
+     * @return Wall clock time in nanoseconds
+     */
+    public long train(int threads, int episodesPerWorker, double[] weights) throws InterruptedException {
+        return train(threads, episodesPerWorker, weights, HashedFeatures.fromArguments(options));
+    }
+
+    /**
+     * Runs the workers to completion, all of them learning into the same hashed features too.
+     *
+     * @param threads           Number of workers, each on its own thread
+     * @param episodesPerWorker Episodes each worker plays
+     * @param weights           Shared weights, updated in place
+     * @param hashed            Shared hashed features, updated in place, or null for none
+     * @return Wall clock time in nanoseconds
+     */
+    public long train(int threads, int episodesPerWorker, double[] weights, HashedFeatures hashed) throws InterruptedException {
+        SplittableRandom seeds = new SplittableRandom(seed);
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> workers = new ArrayList<>();
+            long start = System.nanoTime();
+            for (int i = 0; i < threads; i++) {
+                RLAgent agent = new RLAgent(0, episodesPerWorker, weights, hashed, updater, seeds.split().nextLong(), workerOptions(i));
+                EpisodeDriver driver = drivers.get();
+                workers.add(pool.submit(() -> {
+                    try {
+                        for (int episode = 0; episode < episodesPerWorker; episode++) {
+                            driver.runEpisode(agent);
+                        }
+                    } finally {
+                        agent.close();
+                    }
+                }));
+            }
+            for (Future<?> worker : workers) {
+                worker.get();
+            }
+            return System.nanoTime() - start;
+        } catch (ExecutionException ex) {
+            throw new IllegalStateException("Training worker failed", ex.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    //Workers can't share a trace file, each records to its own with the worker index appended
+    private String[] workerOptions(int worker) {
+        String[] workerOptions = options.clone();
+        for (int i = 0; i < workerOptions.length; i++) {
+            if (workerOptions[i].startsWith("traceFile=")) {
+                workerOptions[i] = workerOptions[i] + "." + worker;
+            }
+        }
+        return workerOptions;
+    }
+
+    /**
+     * Trains from the same initial weights with 1, 2, 4, ... up to maxThreads workers and prints the
+     * episodes per second and speedup over a single worker for each.
+     *
+     * @param maxThreads        Largest number of workers to try
+     * @param episodesPerWorker Episodes each worker plays
+     * @param out               Where to print the report
+     */
+    public void reportScaling(int maxThreads, int episodesPerWorker, PrintStream out) throws InterruptedException {
+        double[] initial = initialWeights(seed, FeaturePipeline.fromArguments(options).size());
+        double singleThreadRate = 0.0;
+
+        out.println("Threads   Episodes/sec   Speedup");
+        out.println("-------   ------------   -------");
+        for (int threads = 1; threads <= maxThreads; threads = nextThreadCount(threads, maxThreads)) {
+            long nanos = train(threads, episodesPerWorker, initial.clone());
+            double rate = threads * episodesPerWorker / (nanos / 1e9);
+            if (threads == 1) {
+                singleThreadRate = rate;
+            }
+            out.println(String.format("%-10d%-15.1f%.2f", threads, rate, rate / singleThreadRate));
+        }
+    }
+
+    private static int nextThreadCount(int threads, int maxThreads) {
+        if (threads == maxThreads) {
+            return maxThreads + 1;
+        }
+        return Math.min(threads * 2, maxThreads);
+    }
+}
@@ -0,0 +1,580 @@
+package edu.cwru.sepia.agent;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * The features and Q-values of every (footman, enemy) pair for the current turn. The features are computed
+ * once per turn and then shared by action selection, the TD target in the weight update and action issuing.
+ * <p>
+ * Features are stored one plane per feature (feature-major), so computing the Q-values is a handful of
+ * straight multiply-add loops over contiguous arrays which the JIT can vectorize.
+ * <p>
+ * In large battles each row can be limited to the k enemies nearest to the footman, found with a
+ * {@link UnitGrid}. A row then has k slots instead of one per enemy, and each slot remembers which enemy
+ * column it holds. Enemies outside a footman's slots are not scored for it.
+ * <p>
+ * When a turn has at least parallelThreshold pairs and a pool with more than one thread is set, the rows are
+ * split over a ForkJoin pool. Each task extracts with its own context and writes only its own rows, and no
+ * randomness is involved, so the matrix comes out the same as on one thread.
+ * <p>
+ * The anytime evaluation works against a deadline instead. Every row scores its enemies nearest first and the
+ * matrix stops filling when time runs out, keeping the best enemy found so far. Rows it never got to are left
+ * undecided, see {@link #isDecided}.
+ * <p>
+ * With {@link HashedFeatures} set, every cell also keeps the weight indices of its tiles and their weights are
+ * added to its Q-value.
+ */
+public class QMatrix {
+
+    private final int numFeatures;
+
+    private int[] attackerIds = new int[0];
+    private int[] defenderIds = new int[0];
+    private int rows;
+    private int columns;
+
+    //Cells per row. Equal to columns when every enemy is scored.
+    private int width;
+    //Enemy column held by each cell, null when every enemy is scored and the slot is the column
+    private int[] slotColumns;
+    private int[] candidateScratch = new int[0];
+    //Scratch space of the anytime evaluation: columns nearest first, their distances and a count per distance
+    private int[] order = new int[0];
+    private int[] distances = new int[0];
+    private int[] distanceCounts = new int[0];
+    //Cells the anytime evaluation did not get to, only meaningful while anytime is set
+    private boolean[] unscored = new boolean[0];
+    private boolean anytime;
+
+    //Unit ID -> row or column, -1 when the unit is not in the matrix this turn
+    private int[] rowOfUnit = new int[0];
+    private int[] columnOfUnit = new int[0];
+
+    //features[f * cells + row * width + slot]
+    private double[] features = new double[0];
+    private double[] qValues = new double[0];
+
+    //Greedy choice for every row, refreshed with the Q-values
+    private int[] bestColumn = new int[0];
+    private double[] bestQ = new double[0];
+
+    //Scratch space for one feature vector
+    private final double[] scratch;
+
+    //Hashed features and the tiles of every cell, tiles[cell * TILINGS + t], null when there are none
+    private HashedFeatures hashed;
+    private int[] tiles = new int[0];
+    private final FeatureContext tileContext = new FeatureContext();
+
+    //Rows are evaluated on the pool when a turn has at least this many pairs, null for never
+    private ForkJoinPool pool;
+    private int parallelThreshold = Integer.MAX_VALUE;
+
+    //One pool per parallelism level for the whole JVM, so agents that come and go don't each leave threads behind
+    private static final Map<Integer, ForkJoinPool> SHARED_POOLS = new ConcurrentHashMap<>();
+
+    public QMatrix(int numFeatures) {
+        this.numFeatures = numFeatures;
+        this.scratch = new double[numFeatures];
+    }
+
+    /**
+     * Evaluates large turns on a pool. Nothing runs in parallel if the pool has a single thread, there would
+     * only be the cost of splitting the work.
+     *
+     * @param pool              Pool to evaluate on
+     * @param parallelThreshold Pairs a turn needs before it is split up
+     */
+    public void setParallelism(ForkJoinPool pool, int parallelThreshold) {
+        this.pool = pool.getParallelism() > 1 ? pool : null;
+        this.parallelThreshold = parallelThreshold;
+    }
+
+    /**
+     * @param parallelism Threads, 0 for the common pool
+     * @return A pool with that many threads, shared by every caller asking for the same number. Its threads
+     * are daemons and it is never shut down.
+     */
+    public static ForkJoinPool sharedPool(int parallelism) {
+        if (parallelism <= 0) {
+            return ForkJoinPool.commonPool();
+        }
+        return SHARED_POOLS.computeIfAbsent(parallelism, ForkJoinPool::new);
+    }
+
+    /**
+     * Adds the hashed features to every Q-value from now on.
+     *
+     * @param hashed Table to read the tile weights from, or null for dense features only
+     */
+    public void setHashedFeatures(HashedFeatures hashed) {
+        this.hashed = hashed;
+    }
+
+    /**
+     * @return True if a turn with this many pairs is evaluated in parallel
+     */
+    public boolean isParallel(int pairs) {
+        return pool != null && pairs >= parallelThreshold;
+    }
+
+    /**
+     * Computes the features of every attacker and defender pair and then their Q-values.
+     *
+     * @param agent       Agent whose feature function to use
+     * @param view        The battle at the current turn
+     * @param attackers   Our living footmen
+     * @param defenders   The living enemy footmen
+     * @param weights     Current Q-function weights
+     */
+    public void evaluate(RLAgent agent, BattleView view, List<Integer> attackers, List<Integer> defenders, double[] weights) {
+        resize(attackers, defenders, defenders.size());
+        slotColumns = null;
+
+        int cells = rows * width;
+        if (isParallel(cells)) {
+            pool.invoke(new RowTask(agent, view, 0, rows, rowsPerTask()));
+        } else {
+            for (int row = 0; row < rows; row++) {
+                for (int column = 0; column < columns; column++) {
+                    storeFeatures(agent, view, row, column, row * width + column, cells);
+                }
+            }
+        }
+
+        updateQValues(weights);
+    }
+
+    /**
+     * Like {@link #evaluate(RLAgent, BattleView, List, List, double[])}, but every attacker only scores the k
+     * defenders nearest to it. Falls back to scoring every defender when there are no more than k of them, or
+     * when the grid does not hold all of them.
+     *
+     * @param agent       Agent whose feature function to use
+     * @param view        The battle at the current turn
+     * @param attackers   Our living footmen
+     * @param defenders   The living enemy footmen
+     * @param weights     Current Q-function weights
+     * @param defenderGrid Grid holding the defenders at their current positions
+     * @param k           Defenders scored per attacker
+     */
+    public void evaluate(RLAgent agent, BattleView view, List<Integer> attackers, List<Integer> defenders, double[] weights,
+                         UnitGrid defenderGrid, int k) {
+        if (k <= 0 || defenders.size() <= k || defenderGrid.size() < defenders.size()) {
+            evaluate(agent, view, attackers, defenders, weights);
+            return;
+        }
+        resize(attackers, defenders, k);
+        int cells = rows * width;
+        if (slotColumns == null || slotColumns.length < cells) {
+            slotColumns = new int[Math.max(cells, qValues.length)];
+        }
+        if (candidateScratch.length < k) {
+            candidateScratch = new int[k];
+        }
+
+        // The grid search shares scratch space, only the features are computed in parallel
+        boolean parallel = isParallel(cells);
+        for (int row = 0; row < rows; row++) {
+            int attackerId = attackerIds[row];
+            defenderGrid.nearest(view.getXPosition(attackerId), view.getYPosition(attackerId), k, candidateScratch);
+            for (int slot = 0; slot < width; slot++) {
+                int cell = row * width + slot;
+                int column = columnOf(candidateScratch[slot]);
+                slotColumns[cell] = column;
+                if (!parallel) {
+                    storeFeatures(agent, view, row, column, cell, cells);
+                }
+            }
+        }
+        if (parallel) {
+            pool.invoke(new RowTask(agent, view, 0, rows, rowsPerTask()));
+        }
+
+        updateQValues(weights);
+    }
+
+    /**
+     * Anytime version of {@link #evaluate(RLAgent, BattleView, List, List, double[])}. The rows are filled in
+     * the order of the attackers, each scoring its enemies nearest first, until the deadline passes. A row cut
+     * short keeps the best of the enemies it did score, the rows after it are not scored at all.
+     * <p>
+     * Always runs on the calling thread since it reads the clock between pairs.
+     *
+     * @param agent     Agent whose feature function to use
+     * @param view      The battle at the current turn
+     * @param attackers Our living footmen, the ones that most need an order first
+     * @param defenders The living enemy footmen
+     * @param weights   Current Q-function weights
+     * @param k         Defenders scored per attacker at most, 0 for all of them
+     * @param deadline  System.nanoTime() by which to stop
+     * @return True if every row was scored in full before the deadline
+     */
+    public boolean evaluate(RLAgent agent, BattleView view, List<Integer> attackers, List<Integer> defenders, double[] weights,
+                            int k, long deadline) {
+        boolean limited = k > 0 && k < defenders.size();
+        resize(attackers, defenders, limited ? k : defenders.size());
+        int cells = rows * width;
+        // With every enemy in the row a cell is still indexed by column, only the order of scoring changes
+        if (limited) {
+            if (slotColumns == null || slotColumns.length < cells) {
+                slotColumns = new int[Math.max(cells, qValues.length)];
+            }
+            Arrays.fill(slotColumns, 0, cells, -1);
+        } else {
+            slotColumns = null;
+        }
+        if (unscored.length < cells) {
+            unscored = new boolean[Math.max(cells, qValues.length)];
+        }
+        Arrays.fill(unscored, 0, cells, true);
+        anytime = true;
+        if (order.length < columns) {
+            order = new int[columns];
+            distances = new int[columns];
+        }
+
+        boolean complete = true;
+        //Longest a row has taken so far, -1 before the first one
+        long slowestRow = -1;
+        for (int row = 0; row < rows && complete; row++) {
+            long rowStart = System.nanoTime();
+            if (rowStart - deadline > 0) {
+                complete = false;
+                break;
+            }
+            // Far from the deadline the row finishes whatever the order, so only sort and watch the clock near it
+            boolean nearDeadline = slowestRow < 0 || deadline - rowStart < 2 * slowestRow;
+            if (limited || nearDeadline) {
+                sortByDistance(view, attackerIds[row]);
+            }
+            for (int slot = 0; slot < width; slot++) {
+                // Reading the clock costs about as much as a pair, so only do it every few pairs
+                if (nearDeadline && slot > 0 && (slot & 7) == 0 && System.nanoTime() - deadline > 0) {
+                    complete = false;
+                    break;
+                }
+                int column = limited || nearDeadline ? order[slot] : slot;
+                int cell = row * width + (limited ? slot : column);
+                if (limited) {
+                    slotColumns[cell] = column;
+                }
+                unscored[cell] = false;
+                storeFeatures(agent, view, row, column, cell, cells);
+            }
+            slowestRow = Math.max(slowestRow, System.nanoTime() - rowStart);
+        }
+
+        updateQValues(weights);
+        return complete;
+    }
+
+    //Counting sort of the columns by Chebyshev distance to the attacker, into order. Ties stay in column order.
+    private void sortByDistance(BattleView view, int attackerId) {
+        int x = view.getXPosition(attackerId);
+        int y = view.getYPosition(attackerId);
+        int maxDistance = 0;
+        for (int column = 0; column < columns; column++) {
+            int defenderId = defenderIds[column];
+            int distance = Math.max(Math.abs(view.getXPosition(defenderId) - x), Math.abs(view.getYPosition(defenderId) - y));
+            distances[column] = distance;
+            maxDistance = Math.max(maxDistance, distance);
+        }
+        if (distanceCounts.length <= maxDistance) {
+            distanceCounts = new int[maxDistance + 1];
+        }
+        Arrays.fill(distanceCounts, 0, maxDistance + 1, 0);
+        for (int column = 0; column < columns; column++) {
+            distanceCounts[distances[column]]++;
+        }
+        int start = 0;
+        for (int distance = 0; distance <= maxDistance; distance++) {
+            int count = distanceCounts[distance];
+            distanceCounts[distance] = start;
+            start += count;
+        }
+        for (int column = 0; column < columns; column++) {
+            order[distanceCounts[distances[column]]++] = column;
+        }
+    }
+
+    private void storeFeatures(RLAgent agent, BattleView view, int row, int column, int cell, int cells) {
+        agent.calculateFeatureVector(view, attackerIds[row], defenderIds[column], scratch);
+        for (int f = 0; f < numFeatures; f++) {
+            features[f * cells + cell] = scratch[f];
+        }
+        if (hashed != null) {
+            tileContext.load(view, agent.lastTurnEvents, attackerIds[row], defenderIds[column]);
+            hashed.encode(tileContext, tiles, cell * HashedFeatures.TILINGS);
+        }
+    }
+
+    //A few tasks per thread so uneven rows still balance
+    private int rowsPerTask() {
+        return Math.max(1, rows / (4 * pool.getParallelism()));
+    }
+
+    /**
+     * Extracts the features of a range of rows, splitting it in half until it is small enough.
+     */
+    private class RowTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final RLAgent agent;
+        private final BattleView view;
+        private final int from;
+        private final int to;
+        private final int rowsPerTask;
+
+        RowTask(RLAgent agent, BattleView view, int from, int to, int rowsPerTask) {
+            this.agent = agent;
+            this.view = view;
+            this.from = from;
+            this.to = to;
+            this.rowsPerTask = rowsPerTask;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > rowsPerTask) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new RowTask(agent, view, from, middle, rowsPerTask), new RowTask(agent, view, middle, to, rowsPerTask));
+                return;
+            }
+            FeatureContext context = new FeatureContext();
+            double[] pair = new double[numFeatures];
+            int cells = rows * width;
+            for (int row = from; row < to; row++) {
+                for (int slot = 0; slot < width; slot++) {
+                    int cell = row * width + slot;
+                    int column = slotColumns == null ? slot : slotColumns[cell];
+                    agent.extractFeatures(context, view, attackerIds[row], defenderIds[column], pair);
+                    for (int f = 0; f < numFeatures; f++) {
+                        features[f * cells + cell] = pair[f];
+                    }
+                    if (hashed != null) {
+                        hashed.encode(context, tiles, cell * HashedFeatures.TILINGS);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Recomputes the Q-values and greedy choices from the stored features. Used after the weights change.
+     *
+     * @param weights Current Q-function weights
+     */
+    public void updateQValues(double[] weights) {
+        int cells = rows * width;
+        Arrays.fill(qValues, 0, cells, 0.0);
+        for (int f = 0; f < numFeatures; f++) {
+            double weight = weights[f];
+            int offset = f * cells;
+            for (int cell = 0; cell < cells; cell++) {
+                qValues[cell] += weight * features[offset + cell];
+            }
+        }
+        if (hashed != null) {
+            for (int cell = 0; cell < cells; cell++) {
+                qValues[cell] += hashed.value(tiles, cell * HashedFeatures.TILINGS);
+            }
+        }
+
+        for (int row = 0; row < rows; row++) {
+            int best = -1;
+            double max = Double.NEGATIVE_INFINITY;
+            for (int slot = 0; slot < width; slot++) {
+                if (anytime && unscored[row * width + slot]) {
+                    // Not scored before the deadline
+                    continue;
+                }
+                double q = qValues[row * width + slot];
+                if (q > max) {
+                    max = q;
+                    best = slot;
+                }
+            }
+            bestColumn[row] = best < 0 || slotColumns == null ? best : slotColumns[row * width + best];
+            bestQ[row] = max;
+        }
+    }
+
+    /**
+     * Forgets the previous evaluation so nothing stale is read before the next one.
+     */
+    public void clear() {
+        for (int row = 0; row < rows; row++) {
+            rowOfUnit[attackerIds[row]] = -1;
+        }
+        for (int column = 0; column < columns; column++) {
+            columnOfUnit[defenderIds[column]] = -1;
+        }
+        rows = 0;
+        columns = 0;
+        width = 0;
+        anytime = false;
+    }
+
+    private void resize(List<Integer> attackers, List<Integer> defenders, int width) {
+        clear();
+
+        rows = attackers.size();
+        columns = defenders.size();
+        this.width = width;
+        if (attackerIds.length < rows) {
+            attackerIds = new int[rows];
+            bestColumn = new int[rows];
+            bestQ = new double[rows];
+        }
+        if (defenderIds.length < columns) {
+            defenderIds = new int[columns];
+        }
+        int cells = rows * width;
+        if (qValues.length < cells) {
+            qValues = new double[cells];
+            features = new double[cells * numFeatures];
+        }
+        if (hashed != null && tiles.length < cells * HashedFeatures.TILINGS) {
+            tiles = new int[Math.max(cells, qValues.length) * HashedFeatures.TILINGS];
+        }
+        // Units move between turns, the context must not reuse last turn's attacker
+        tileContext.invalidate();
+
+        int row = 0;
+        for (int attackerId : attackers) {
+            rowOfUnit = ensureIndexable(rowOfUnit, attackerId);
+            rowOfUnit[attackerId] = row;
+            attackerIds[row++] = attackerId;
+        }
+        int column = 0;
+        for (int defenderId : defenders) {
+            columnOfUnit = ensureIndexable(columnOfUnit, defenderId);
+            columnOfUnit[defenderId] = column;
+            defenderIds[column++] = defenderId;
+        }
+    }
+
+    private static int[] ensureIndexable(int[] index, int unitId) {
+        if (unitId < index.length) {
+            return index;
+        }
+        int oldLength = index.length;
+        int[] grown = Arrays.copyOf(index, Math.max(unitId + 1, oldLength * 2));
+        Arrays.fill(grown, oldLength, grown.length, -1);
+        return grown;
+    }
+
+    /**
+     * @return The row of the attacker, or -1 if it was not evaluated this turn
+     */
+    public int rowOf(int attackerId) {
+        return attackerId < rowOfUnit.length ? rowOfUnit[attackerId] : -1;
+    }
+
+    /**
+     * @return The column of the defender, or -1 if it was not evaluated this turn
+     */
+    public int columnOf(int defenderId) {
+        return defenderId < columnOfUnit.length ? columnOfUnit[defenderId] : -1;
+    }
+
+    public int getColumnCount() {
+        return columns;
+    }
+
+    /**
+     * @return Defenders scored for each attacker this turn
+     */
+    public int getScoredPerRow() {
+        return width;
+    }
+
+    public int getDefenderId(int column) {
+        return defenderIds[column];
+    }
+
+    /**
+     * @return Q(attacker, defender), or NaN if the defender was not scored for this attacker
+     */
+    public double getQValue(int row, int column) {
+        int cell = cellOf(row, column);
+        return cell < 0 ? Double.NaN : qValues[cell];
+    }
+
+    /**
+     * @return Whether the pair was scored this turn
+     */
+    public boolean isScored(int row, int column) {
+        return row >= 0 && column >= 0 && cellOf(row, column) >= 0;
+    }
+
+    private int cellOf(int row, int column) {
+        if (slotColumns == null) {
+            int cell = row * width + column;
+            return anytime && unscored[cell] ? -1 : cell;
+        }
+        for (int slot = 0; slot < width; slot++) {
+            if (slotColumns[row * width + slot] == column) {
+                return row * width + slot;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return Column of the largest Q-value in the row, the first one scored on ties
+     */
+    public int getBestColumn(int row) {
+        return bestColumn[row];
+    }
+
+    /**
+     * @return False if the row was not scored at all, it then has no best column
+     */
+    public boolean isDecided(int row) {
+        return bestColumn[row] >= 0;
+    }
+
+    /**
+     * @return max over the enemies of Q(attacker, enemy)
+     */
+    public double getMaxQValue(int row) {
+        return bestQ[row];
+    }
+
+    /**
+     * Copies the features of one pair out of the matrix. The pair must have been scored, see {@link #isScored}.
+     *
+     * @param row    Attacker row
+     * @param column Defender column
+     * @param out    Array of at least numFeatures entries
+     * @return The out array
+     */
+    public double[] copyFeatures(int row, int column, double[] out) {
+        int cells = rows * width;
+        int cell = cellOf(row, column);
+        for (int f = 0; f < numFeatures; f++) {
+            out[f] = features[f * cells + cell];
+        }
+        return out;
+    }
+
+    /**
+     * Copies the hashed feature tiles of one scored pair out of the matrix.
+     *
+     * @param row    Attacker row
+     * @param column Defender column
+     * @param out    Array of at least TILINGS entries
+     * @return The out array
+     */
+    public int[] copyTiles(int row, int column, int[] out) {
+        System.arraycopy(tiles, cellOf(row, column) * HashedFeatures.TILINGS, out, 0, HashedFeatures.TILINGS);
+        return out;
+    }
+}
@@ -1,17 +1,21 @@
 package edu.cwru.sepia.agent;
 
 import edu.cwru.sepia.action.Action;
-import edu.cwru.sepia.environment.model.history.DamageLog;
-import edu.cwru.sepia.environment.model.history.DeathLog;
 import edu.cwru.sepia.environment.model.history.History;
 import edu.cwru.sepia.environment.model.state.State;
-import edu.cwru.sepia.environment.model.state.Unit;
 
 import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 public class RLAgent extends Agent {
 
+    private static final long serialVersionUID = 1L;
+
     /**
      * Set in the constructor. Defines how many learning episodes your agent should run for.
      * When starting an episode. If the count is greater than this value print a message
@@ -35,18 +39,84 @@ public class RLAgent extends Agent {
     private List<Integer> enemyFootmen;
 
 
-    //Reward storage
-    List<Double> inEpisodeRewards;
-    List<Double> cumulativeRewards;
+    //Reward storage. Turn rewards of this episode and the average rewards of this block's test episodes are
+    //running statistics, so only the learning curve itself grows, by one entry per block.
+    final RunningStats episodeRewards = new RunningStats();
+    final RunningStats testEpisodeRewards = new RunningStats();
     List<Double> averagedRewards;
 
-    //Feature storage, used when updating weights
-    Map<Integer, Double[]> previousFeatures;
-    Map<Integer, Double[]> currentFeatures;
+    //Streams the learning curve as each evaluation block ends. Null for trainer workers.
+    final LearningCurveWriter learningCurve;
+
+    //Tests each block's weights on other threads, null when the test episodes are played in-line
+    private BackgroundEvaluator evaluator;
+    private final ArrayDeque<Future<RunningStats>> pendingEvaluations = new ArrayDeque<>();
+    private SplittableRandom evaluationSeeds;
+
+    /**
+     * Set on the agents a BackgroundEvaluator creates, which play nothing but test episodes.
+     */
+    boolean testOnly;
+
+    //Features of the action each footman took, used when updating weights
+    Map<Integer, double[]> previousFeatures;
+    Map<Integer, double[]> currentFeatures;
+    //The same for the hashed features, only filled when there are some
+    Map<Integer, int[]> previousTiles = new HashMap<>();
+    Map<Integer, int[]> currentTiles = new HashMap<>();
+
+    /**
+     * Sparse features learned on top of the dense ones, set with hashedBits=N. Null when there are none.
+     */
+    final HashedFeatures hashed;
+
+    //Pair context for hashing pairs the Q matrix did not score
+    private final FeatureContext tileContext = new FeatureContext();
+
+    //Features of every (attacker, defender) pair computed this turn
+    FeatureCache featureCache;
+
+    //Scratch space for calcQValue so that it never allocates
+    private final int[] tileScratch = new int[HashedFeatures.TILINGS];
+    private final double[] featureScratch;
+
+    //Copy of a transition's features with the frozen ones zeroed, so updates leave their weights alone
+    private final double[] gradientScratch;
+
+    //Enemy each footman was last ordered to attack, by unit ID, -1 when it has no order
+    private int[] targetOf = new int[0];
+
+    //Footmen getting a new order this turn
+    private final List<Integer> replanning = new ArrayList<>();
+
+    /**
+     * When true only footmen whose order ended, whose target died or who were hit get a new order, the others
+     * carry on with the one they have. Turned off with incrementalReplanning=false, which reissues every order
+     * every turn.
+     */
+    final boolean incrementalReplanning;
 
     //Storing cumulative reward per footman.
     Map<Integer, Double> rewardsPerUnit;
 
+    //Damage, deaths and commands from the previous turn, rebuilt at the start of every middleStep
+    CombatEventSummary lastTurnEvents;
+
+    //Features and Q-values of every footman/enemy pair, evaluated once per turn
+    final QMatrix qMatrix;
+
+    /**
+     * The features this run uses, set with the features and frozenFeatures options. Its size is the number of
+     * weights.
+     */
+    final FeaturePipeline featurePipeline;
+
+    //Adapts SEPIA's views to the BattleView the agent logic reads from
+    private final SepiaBattleView sepiaView = new SepiaBattleView();
+
+    //The units of the current turn, captured once per turn so the rest of the turn reads arrays
+    private final UnitSnapshot snapshot = new UnitSnapshot();
+
     /**
      * Convenience variable specifying enemy agent number. Use this whenever referring
      * to the enemy agent. We will make sure it is set to the proper number when testing your code.
@@ -54,7 +124,7 @@ public class RLAgent extends Agent {
     public static final int ENEMY_PLAYERNUM = 1;
 
     /**
-     * Set this to whatever size your feature vector is.
+     * Size of the default feature vector. A run with the features option set has featurePipeline.size() features.
      */
     public static final int NUM_FEATURES = 4;
 
@@ -62,65 +132,380 @@ public class RLAgent extends Agent {
      * Use this random number generator for your epsilon exploration. When you submit we will
      * change this seed so make sure that your agent works for more than the default seed.
      */
-    public final Random random = new Random(12345);
+    public final Random random;
+
+    /**
+     * How gradient steps are written into the weights. Only matters when several agents share one weight array.
+     */
+    final WeightUpdater weightUpdater;
+
+    /**
+     * True when SEPIA created this agent. It then saves its weights after every episode and exits the JVM when
+     * done. Agents created by the ParallelTrainer leave both to the trainer.
+     */
+    final boolean standalone;
+
+    /**
+     * Optional name=value arguments that come after the two positional ones, for example
+     * &lt;Argument&gt;replayCapacity=50000&lt;/Argument&gt; in the config file.
+     */
+    final Map<String, String> options;
+
+    /**
+     * Experience replay. Transitions are kept here and the weights are updated from sampled mini-batches
+     * instead of from the latest transition only. Null unless the replayCapacity option is set.
+     */
+    final ReplayBuffer replayBuffer;
+    final int replayBatchSize;
+
+    /**
+     * Binary checkpoint of the weights, episode counter, random state and learning curve, written in the
+     * background every checkpointInterval episodes. loadWeights=true starts from its weights, resume=true picks
+     * the whole run back up from it. Null for trainer workers.
+     */
+    public static final Path CHECKPOINT_PATH = Paths.get("agent_weights", "weights.ckpt");
+    final WeightCheckpointer checkpointer;
+    final int checkpointInterval;
+
+    /**
+     * Per-phase timers and counters, exported to CSV and JMX. Turned on with the metrics=true option.
+     */
+    final AgentMetrics metrics;
 
     /**
-     * Your Q-function weights.
+     * When candidateEnemies is set, each footman only scores that many of its nearest enemies, found through
+     * enemyGrid. Null and 0 when every enemy is scored.
      */
-    public Double[] weights;
+    final UnitGrid enemyGrid;
+    final int candidateEnemies;
+
+    /**
+     * Time a turn may take, set with turnDeadlineUs. Evaluation then scores each footman's enemies nearest first
+     * and stops when the time is up, footmen it did not get to keep their order. 0 for no deadline.
+     */
+    final long turnDeadlineNanos;
+
+    //Footmen in the order the anytime evaluation scores them, the ones getting a new order first
+    private final List<Integer> evaluationOrder = new ArrayList<>();
+
+    /**
+     * Progress and debug messages. Written on a background thread so the game loop never waits on the console.
+     */
+    final EventLog log;
+
+    /**
+     * Records every transition learned from to the traceFile option, for the {@link OfflineTrainer}. Null when
+     * the option is not set.
+     */
+    final TransitionRecorder recorder;
+
+    /**
+     * Your Q-function weights. Kept as a primitive array so evaluating Q never boxes.
+     */
+    public double[] weights;
 
     /**
      * These variables are set for you according to the assignment definition. You can change them,
      * but it is not recommended. If you do change them please let us know and explain your reasoning for
      * changing them.
+     * <p>
+     * The gamma, learningRate and epsilon options override them for one run, which is how {@link SweepRunner}
+     * tries other values.
      */
     //Discount Factor
-    public final Double gamma = 0.9;
+    public final double gamma;
     //Alpha for updating weights
-    public final Double learningRate = .0001;
+    public final double learningRate;
     //Epsilon value for Epsilon-Greedy Exploration Strategy
-    public final Double epsilon = .02;
+    public final double epsilon;
 
     public RLAgent(int playernum, String[] args) {
         super(playernum);
 
+        weightUpdater = WeightUpdater.HOGWILD;
+        standalone = true;
         currentEpisode = 0;
 
-        cumulativeRewards = new ArrayList<>();
         averagedRewards = new ArrayList<>();
         averagedRewards.add(0.0);
 
+        options = parseOptions(args, 2);
+        log = createLog();
+        gamma = doubleOption("gamma", 0.9);
+        learningRate = doubleOption("learningRate", .0001);
+        epsilon = doubleOption("epsilon", .02);
+        featurePipeline = createFeaturePipeline();
+        featureScratch = new double[featurePipeline.size()];
+        gradientScratch = new double[featurePipeline.size()];
+        qMatrix = createQMatrix();
+
         if (args.length >= 1) {
             numEpisodes = Integer.parseInt(args[0]);
-            System.out.println("Running " + numEpisodes + " episodes.");
+            log.info("config.episodes", "Running {episodes} episodes.", numEpisodes);
         } else {
             numEpisodes = 10;
-            System.out.println("Warning! Number of episodes not specified. Defaulting to 10 episodes.");
+            log.warn("config.episodes", "Warning! Number of episodes not specified. Defaulting to {episodes} episodes.", numEpisodes);
         }
 
         boolean loadWeights = false;
         if (args.length >= 2) {
             loadWeights = Boolean.parseBoolean(args[1]);
         } else {
-            System.out.println("Warning! Load weights argument not specified. Defaulting to not loading.");
+            log.warn("config.load", "Warning! Load weights argument not specified. Defaulting to not loading.");
+        }
+
+        replayBuffer = createReplayBuffer();
+        replayBatchSize = intOption("replayBatchSize", 32);
+        checkpointInterval = intOption("checkpointInterval", 1);
+        checkpointer = new WeightCheckpointer(CHECKPOINT_PATH);
+        metrics = createMetrics();
+        candidateEnemies = intOption("candidateEnemies", 0);
+        enemyGrid = candidateEnemies > 0 ? new UnitGrid(intOption("gridCellSize", 4)) : null;
+        turnDeadlineNanos = intOption("turnDeadlineUs", 0) * 1000L;
+        incrementalReplanning = booleanOption("incrementalReplanning", true);
+        recorder = createRecorder();
+
+        boolean resume = booleanOption("resume", false);
+        WeightCheckpointer.Checkpoint checkpoint = loadWeights || resume ? WeightCheckpointer.read(CHECKPOINT_PATH) : null;
+        hashed = restoreHashedFeatures(checkpoint);
+        qMatrix.setHashedFeatures(hashed);
+        // A resumed run adds its blocks to the curve it is continuing
+        learningCurve = new LearningCurveWriter(Paths.get(stringOption("learningCurveFile", "agent_metrics/learning_curve.csv")),
+                resume && checkpoint != null);
+        if (checkpoint != null) {
+            weights = checkpoint.weights;
+            if (!featurePipeline.matches(checkpoint.featureNames)) {
+                log.warn("checkpoint.features", "Checkpoint features {saved} differ from {features}, new features start at 0.",
+                        Arrays.toString(checkpoint.featureNames), Arrays.toString(featurePipeline.getNames()));
+                weights = featurePipeline.remap(checkpoint.featureNames, checkpoint.weights);
+            }
+            if (!resume) {
+                random = new Random(12345);
+                log.info("checkpoint.load", "Starting from the weights of the checkpoint at episode {episode}.", checkpoint.episode);
+                return;
+            }
+
+            // Pick the run back up where the checkpoint left it
+            random = checkpoint.random;
+            currentEpisode = checkpoint.episode;
+            if (checkpoint.learningCurve != null) {
+                averagedRewards = new ArrayList<>();
+                for (double reward : checkpoint.learningCurve) {
+                    averagedRewards.add(reward);
+                }
+                testEpisodeRewards.copyFrom(checkpoint.testRewards);
+            } else {
+                log.warn("checkpoint.curve", "Checkpoint has no learning curve, the test results before episode {episode} are lost.",
+                        currentEpisode);
+            }
+            log.info("checkpoint.resume", "Resuming from checkpoint at episode {episode}.", currentEpisode);
+            return;
+        }
+        if (resume) {
+            log.warn("checkpoint.missing", "Nothing to resume from in {path}, starting a new run.", CHECKPOINT_PATH);
         }
 
+        random = new Random(12345);
         if (loadWeights) {
-            weights = loadWeights();
-        } else {
+            weights = readWeightsFile();
+            // The text file has no feature names, all that can be checked is the count
+            if (weights != null && weights.length != featurePipeline.size()) {
+                log.warn("weights.size", "Loaded {loaded} weights for {features} features, starting from random weights.",
+                        weights.length, featurePipeline.size());
+                weights = null;
+            }
+        }
+        if (weights == null) {
             // initialize weights to random values between -1 and 1
-            weights = new Double[NUM_FEATURES];
+            weights = new double[featurePipeline.size()];
             for (int i = 0; i < weights.length; i++) {
                 weights[i] = random.nextDouble() * 2 - 1;
             }
         }
     }
 
+    /**
+     * Creates a training worker that learns into a weight array shared with other workers.
+     *
+     * @param playernum     Player this agent controls
+     * @param numEpisodes   Number of episodes the worker will play
+     * @param sharedWeights Weights shared by all workers, updated in place
+     * @param weightUpdater How updates are written into the shared weights
+     * @param seed          Seed of this worker's random stream
+     * @param options       Optional name=value arguments, the same ones the config file accepts
+     */
+    public RLAgent(int playernum, int numEpisodes, double[] sharedWeights, WeightUpdater weightUpdater, long seed, String... options) {
+        this(playernum, numEpisodes, sharedWeights, HashedFeatures.fromArguments(options), weightUpdater, seed, options);
+    }
+
+    /**
+     * Creates a training worker that also shares a table of hashed features with other workers.
+     *
+     * @param playernum     Player this agent controls
+     * @param numEpisodes   Number of episodes the worker will play
+     * @param sharedWeights Weights shared by all workers, updated in place
+     * @param sharedHashed  Hashed features shared by all workers, updated in place, or null for none
+     * @param weightUpdater How updates are written into the shared weights
+     * @param seed          Seed of this worker's random stream
+     * @param options       Optional name=value arguments, the same ones the config file accepts
+     */
+    public RLAgent(int playernum, int numEpisodes, double[] sharedWeights, HashedFeatures sharedHashed, WeightUpdater weightUpdater,
+                   long seed, String... options) {
+        super(playernum);
+
+        this.random = new Random(seed);
+        this.weightUpdater = weightUpdater;
+        this.standalone = false;
+        this.numEpisodes = numEpisodes;
+        this.weights = sharedWeights;
+        this.options = parseOptions(options, 0);
+        this.gamma = doubleOption("gamma", 0.9);
+        this.learningRate = doubleOption("learningRate", .0001);
+        this.epsilon = doubleOption("epsilon", .02);
+        this.log = createLog();
+        this.featurePipeline = createFeaturePipeline();
+        if (sharedWeights.length != featurePipeline.size()) {
+            throw new IllegalArgumentException("Got " + sharedWeights.length + " weights for " + featurePipeline.size() + " features");
+        }
+        this.featureScratch = new double[featurePipeline.size()];
+        this.gradientScratch = new double[featurePipeline.size()];
+        this.qMatrix = createQMatrix();
+        this.replayBuffer = createReplayBuffer();
+        this.replayBatchSize = intOption("replayBatchSize", 32);
+        this.checkpointer = null;
+        this.checkpointInterval = 0;
+        this.metrics = createMetrics();
+        this.hashed = sharedHashed;
+        qMatrix.setHashedFeatures(sharedHashed);
+        this.candidateEnemies = intOption("candidateEnemies", 0);
+        this.enemyGrid = candidateEnemies > 0 ? new UnitGrid(intOption("gridCellSize", 4)) : null;
+        this.turnDeadlineNanos = intOption("turnDeadlineUs", 0) * 1000L;
+        this.incrementalReplanning = booleanOption("incrementalReplanning", true);
+        this.learningCurve = null;
+        this.recorder = createRecorder();
+        currentEpisode = 0;
+
+        averagedRewards = new ArrayList<>();
+        averagedRewards.add(0.0);
+    }
+
+    /**
+     * Reads the name=value arguments starting at the given index. Shared with {@link InferenceAgent}.
+     */
+    static Map<String, String> parseOptions(String[] args, int first) {
+        Map<String, String> options = new HashMap<>();
+        for (int i = first; i < args.length; i++) {
+            int separator = args[i].indexOf('=');
+            if (separator > 0) {
+                options.put(args[i].substring(0, separator).trim(), args[i].substring(separator + 1).trim());
+            } else {
+                System.err.println("Ignoring argument " + args[i] + ", expected name=value");
+            }
+        }
+        return options;
+    }
+
+    int intOption(String name, int defaultValue) {
+        String value = options.get(name);
+        return value == null ? defaultValue : Integer.parseInt(value);
+    }
+
+    double doubleOption(String name, double defaultValue) {
+        String value = options.get(name);
+        return value == null ? defaultValue : Double.parseDouble(value);
+    }
+
+    boolean booleanOption(String name, boolean defaultValue) {
+        String value = options.get(name);
+        return value == null ? defaultValue : Boolean.parseBoolean(value);
+    }
+
+    String stringOption(String name, String defaultValue) {
+        return options.getOrDefault(name, defaultValue);
+    }
+
+    private AgentMetrics createMetrics() {
+        if (!booleanOption("metrics", false)) {
+            return AgentMetrics.disabled();
+        }
+        return new AgentMetrics(true, intOption("metricsInterval", 100),
+                Paths.get(stringOption("metricsFile", "agent_metrics/metrics.csv")));
+    }
+
+    private EventLog createLog() {
+        EventLog.Sink sink = EventLog.CONSOLE;
+        String logFile = stringOption("logFile", null);
+        if (logFile != null) {
+            try {
+                sink = EventLog.file(Paths.get(logFile));
+            } catch (IOException ex) {
+                System.err.println("Failed to open log file, logging to the console. Reason: " + ex.getMessage());
+            }
+        }
+        return new EventLog(EventLog.Level.valueOf(stringOption("logLevel", "INFO").toUpperCase()),
+                EventLog.Format.valueOf(stringOption("logFormat", "TEXT").toUpperCase()),
+                intOption("logRateLimitMs", 1000), intOption("logQueueCapacity", 4096), sink);
+    }
+
+    private FeaturePipeline createFeaturePipeline() {
+        return new FeaturePipeline(stringOption("features", FeaturePipeline.DEFAULT_FEATURES), stringOption("frozenFeatures", ""));
+    }
+
+    //Turns with at least parallelThreshold pairs are evaluated on parallelism threads, the common pool by default
+    private QMatrix createQMatrix() {
+        QMatrix matrix = new QMatrix(featurePipeline.size());
+        // Agents are created per worker, sweep configuration and evaluation block, so they share their pools
+        matrix.setParallelism(QMatrix.sharedPool(intOption("parallelism", 0)), intOption("parallelThreshold", 4096));
+        return matrix;
+    }
+
+    //The table hashedBits asks for, with the checkpoint's weights if it saved a table of the same size
+    private HashedFeatures restoreHashedFeatures(WeightCheckpointer.Checkpoint checkpoint) {
+        int bits = intOption("hashedBits", 0);
+        HashedFeatures saved = checkpoint == null ? null : checkpoint.hashed;
+        if (bits <= 0) {
+            if (saved != null) {
+                log.warn("checkpoint.hashed", "Checkpoint has hashed features but hashedBits is not set, ignoring them.");
+            }
+            return null;
+        }
+        if (saved != null && saved.getBits() == bits) {
+            return saved;
+        }
+        if (saved != null) {
+            log.warn("checkpoint.hashed", "Checkpoint has {saved} hashed bits instead of {bits}, hashed weights start at 0.",
+                    saved.getBits(), bits);
+        }
+        return new HashedFeatures(bits);
+    }
+
+    private TransitionRecorder createRecorder() {
+        String traceFile = stringOption("traceFile", null);
+        return traceFile == null ? null : new TransitionRecorder(Paths.get(traceFile), featurePipeline.getNames(), 64 * 1024);
+    }
+
+    private ReplayBuffer createReplayBuffer() {
+        int capacity = intOption("replayCapacity", 0);
+        return capacity > 0 ? new ReplayBuffer(featurePipeline.size(), capacity) : null;
+    }
+
     /**
      * We've implemented some setup code for your convenience. Change what you need to.
      */
     @Override
     public Map<Integer, Action> initialStep(State.StateView stateView, History.HistoryView historyView) {
+        startEpisode(sepiaView.update(stateView, historyView));
+        return middleStep(stateView, historyView);
+    }
+
+    /**
+     * Sets up the agent for a new episode. Called by initialStep under SEPIA and directly by the simulator.
+     *
+     * @param source The battle at its first turn
+     */
+    public void startEpisode(BattleView source) {
+        BattleView view = snapshot.capture(source, playernum, ENEMY_PLAYERNUM);
+
         // Check to see if we are doing learning, or
         // if we are transitioning between learning and tested
         if ((currentEpisode % 15) < 10)
@@ -128,22 +513,45 @@ public class RLAgent extends Agent {
         if (currentEpisode % 15 == 10) {
             isTesting = true;
         }
+        // Tests are played in the background, or this agent is the one playing them
+        if (evaluator != null) {
+            isTesting = false;
+        }
+        if (testOnly) {
+            isTesting = true;
+        }
 
-        inEpisodeRewards = new ArrayList<>();
+        episodeRewards.reset();
         currentFeatures = new HashMap<>();
+        currentTiles = new HashMap<>();
+        // Features that can't change a Q-value this episode are not computed
+        featurePipeline.activate(weights, !isTesting);
 
-        System.out.println("Episode " + currentEpisode + " -- testing? " + isTesting);
+        log.info("episode", "Episode {episode} -- testing? {testing}", currentEpisode, isTesting);
 
-        // Find all of your units
-        myFootmen = new LinkedList<>();
-        for (Integer unitId : stateView.getUnitIds(playernum)) {
-            Unit.UnitView unit = stateView.getUnit(unitId);
+        // Size the event summary so it can be indexed directly by unit ID
+        int maxUnitId = 0;
+        for (Integer unitId : view.getAllUnitIds()) {
+            maxUnitId = Math.max(maxUnitId, unitId);
+        }
+        lastTurnEvents = new CombatEventSummary(maxUnitId);
+        if (targetOf.length <= maxUnitId) {
+            targetOf = new int[maxUnitId + 1];
+        }
+        Arrays.fill(targetOf, -1);
+        if (featureCache == null) {
+            featureCache = new FeatureCache(featurePipeline.size(), maxUnitId);
+        } else {
+            featureCache.ensureCapacity(maxUnitId);
+        }
 
-            String unitName = unit.getTemplateView().getName().toLowerCase();
-            if (unitName.equals("footman")) {
+        // Find all of your units
+        myFootmen = new ArrayList<>();
+        for (Integer unitId : view.getUnitIds(playernum)) {
+            if (snapshot.isFootman(unitId)) {
                 myFootmen.add(unitId);
             } else {
-                System.err.println("Unknown unit type: " + unitName);
+                log.warn("unit.unknown", "Unknown unit type: {type}", view.getUnitTypeName(unitId));
             }
         }
         rewardsPerUnit = new HashMap<>();
@@ -152,19 +560,14 @@ public class RLAgent extends Agent {
         }
 
         // Find all of the enemy units
-        enemyFootmen = new LinkedList<>();
-        for (Integer unitId : stateView.getUnitIds(ENEMY_PLAYERNUM)) {
-            Unit.UnitView unit = stateView.getUnit(unitId);
-
-            String unitName = unit.getTemplateView().getName().toLowerCase();
-            if (unitName.equals("footman")) {
+        enemyFootmen = new ArrayList<>();
+        for (Integer unitId : view.getUnitIds(ENEMY_PLAYERNUM)) {
+            if (snapshot.isFootman(unitId)) {
                 enemyFootmen.add(unitId);
             } else {
-                System.err.println("Unknown unit type: " + unitName);
+                log.warn("unit.unknown", "Unknown unit type: {type}", view.getUnitTypeName(unitId));
             }
         }
-
-        return middleStep(stateView, historyView);
     }
 
     /**
@@ -195,86 +598,226 @@ public class RLAgent extends Agent {
      */
     @Override
     public Map<Integer, Action> middleStep(State.StateView stateView, History.HistoryView historyView) {
+        BattleView view = sepiaView.update(stateView, historyView);
+        Map<Integer, Integer> targets = selectTargets(view);
+        if (targets == null) {
+            return null;
+        }
+
+        long start = metrics.begin();
+        Map<Integer, Action> issueActions = new HashMap<>();
+        for (Map.Entry<Integer, Integer> target : targets.entrySet()) {
+            int footmanID = target.getKey();
+            int enemyID = target.getValue();
+            if (snapshot.inRange(footmanID, enemyID)) {
+                issueActions.put(footmanID, Action.createPrimitiveAttack(footmanID, enemyID));
+            } else {
+                issueActions.put(footmanID, Action.createCompoundAttack(footmanID, enemyID));
+            }
+        }
+        metrics.end(AgentMetrics.Phase.ACTION_CREATION, start);
+        return issueActions;
+    }
+
+    /**
+     * The body of middleStep: processes last turn's events, learns and picks who every footman should attack.
+     * The simulator calls this directly and attacks the returned targets itself.
+     *
+     * @param source The battle at the current turn
+     * @return Enemy to attack for each footman, or null if no new orders are needed
+     */
+    public Map<Integer, Integer> selectTargets(BattleView source) {
+        long turnStart = metrics.begin();
+        long deadline = turnDeadlineNanos > 0 ? System.nanoTime() + turnDeadlineNanos : 0L;
+        metrics.countTurn();
+        BattleView view = snapshot.capture(source, playernum, ENEMY_PLAYERNUM);
+
+        // Index last turn's events once, everything below reads from the summary
+        lastTurnEvents.build(view, playernum, view.getTurnNumber() - 1);
+        qMatrix.clear();
+        featureCache.nextEpoch();
+        featurePipeline.nextTurn();
 
         //We want to check and see if we should be computing reward, etc.
-        boolean recomputeDueToDamage = historyView.getDamageLogs(stateView.getTurnNumber() - 1).size() > 0;
-        boolean recomputeDueToDeath = historyView.getDeathLogs(stateView.getTurnNumber() - 1).size() > 0;
-        boolean recomputeDueToActionIssued = historyView.getCommandsIssued(playernum, stateView.getTurnNumber() - 1).size() > 0;
+        boolean recomputeDueToDamage = lastTurnEvents.getDamageEventCount() > 0;
+        boolean recomputeDueToDeath = lastTurnEvents.getDeathEventCount() > 0;
+        boolean recomputeDueToActionIssued = lastTurnEvents.getCommandCount() > 0;
 
-        boolean shouldComputeReward = stateView.getTurnNumber() != 0 || recomputeDueToDamage || recomputeDueToDeath || recomputeDueToActionIssued;
+        boolean shouldComputeReward = view.getTurnNumber() != 0 || recomputeDueToDamage || recomputeDueToDeath || recomputeDueToActionIssued;
 
-        boolean shouldIssueActions = stateView.getTurnNumber() == 0 || shouldComputeReward;
+        boolean shouldIssueActions = view.getTurnNumber() == 0 || shouldComputeReward;
 
-        boolean shouldLearn = stateView.getTurnNumber() % 5 == 0 && stateView.getTurnNumber() != 0;
+        boolean shouldLearn = view.getTurnNumber() % 5 == 0 && view.getTurnNumber() != 0;
 
-        // Loop through all of the deathlogs, remove the dead footmen from the lists of footmen
-        for (DeathLog dLog : historyView.getDeathLogs((stateView.getTurnNumber() - 1))) {
-            if (dLog.getController() == ENEMY_PLAYERNUM) {
-                enemyFootmen.remove((Integer) dLog.getDeadUnitID());
-            } else {
-                myFootmen.remove((Integer) dLog.getDeadUnitID());
+        // Remove the footmen that died last turn from the lists of footmen
+        if (lastTurnEvents.getDeathEventCount() > 0) {
+            enemyFootmen.removeIf(lastTurnEvents::hasDied);
+            myFootmen.removeIf(lastTurnEvents::hasDied);
+        }
+        // Work out who needs a new order, everyone else keeps attacking their current target
+        replanning.clear();
+        for (int footmanID : myFootmen) {
+            if (needsNewOrder(footmanID)) {
+                replanning.add(footmanID);
             }
         }
+        long phaseStart = metrics.end(AgentMetrics.Phase.DEATHS, turnStart);
 
         //If we need to update the rewards, do so.
         if (shouldComputeReward) {
-            Double reward = 0.0;
+            double reward = 0.0;
             //Update the individual rewards
             for (int footmanID : myFootmen) {
                 double previousRewards = rewardsPerUnit.get(footmanID);
-                double footmanIndividualReward = calculateReward(stateView, historyView, footmanID);
+                double footmanIndividualReward = calculateReward(view, footmanID);
                 rewardsPerUnit.put(footmanID,previousRewards + footmanIndividualReward*gamma);
                 reward += footmanIndividualReward;
             }
-            inEpisodeRewards.add(reward);
+            episodeRewards.add(reward);
             previousFeatures = currentFeatures;
             currentFeatures = new HashMap<>();
+            previousTiles = currentTiles;
+            currentTiles = new HashMap<>();
+            phaseStart = metrics.end(AgentMetrics.Phase.REWARD, phaseStart);
+        }
+
+        // Evaluate the footmen against the enemies once, learning and acting both read from this. Learning
+        // needs every footman's best Q-value, acting only needs the footmen that are getting a new order.
+        List<Integer> evaluated = shouldLearn ? myFootmen : replanning;
+        boolean missedDeadline = false;
+        if (shouldLearn || (shouldIssueActions && !replanning.isEmpty())) {
+            if (turnDeadlineNanos > 0) {
+                // Anytime: whoever needs an order is scored first, learning gets what time is left
+                evaluationOrder.clear();
+                evaluationOrder.addAll(replanning);
+                if (shouldLearn && replanning.size() < myFootmen.size()) {
+                    for (int footmanID : myFootmen) {
+                        if (!needsNewOrder(footmanID)) {
+                            evaluationOrder.add(footmanID);
+                        }
+                    }
+                }
+                missedDeadline = !qMatrix.evaluate(this, view, evaluationOrder, enemyFootmen, weights, candidateEnemies, deadline);
+            } else if (enemyGrid == null) {
+                qMatrix.evaluate(this, view, evaluated, enemyFootmen, weights);
+            } else {
+                enemyGrid.update(view, enemyFootmen);
+                qMatrix.evaluate(this, view, evaluated, enemyFootmen, weights, enemyGrid, candidateEnemies);
+            }
+            metrics.countQEvaluations(evaluated.size() * qMatrix.getScoredPerRow());
+            phaseStart = metrics.end(AgentMetrics.Phase.EVALUATION, phaseStart);
         }
 
         // Is current turn we're on one we should learn (update weights)? if so, learn
         if (shouldLearn) {
             for (int footmanID : myFootmen) {
-                Double[] features;
+                double[] features;
+                int[] tiles;
                 if(previousFeatures.containsKey(footmanID)){
                     features = previousFeatures.get(footmanID);
+                    tiles = previousTiles.get(footmanID);
                 } else {
-                    System.out.println("Episode "+currentEpisode+", turn "+stateView.getTurnNumber()+" has no previous features.");
-                    int bestEnemyID = selectAction(stateView,historyView,footmanID);
-                    features = calculateFeatureVector(stateView,historyView,footmanID,bestEnemyID);
+                    if (log.isEnabled(EventLog.Level.DEBUG)) {
+                        log.debug("features.missing", "Episode {episode}, turn {turn} has no previous features.", currentEpisode, view.getTurnNumber());
+                    }
+                    int bestEnemyID = selectAction(view, footmanID);
+                    features = actionFeatures(view, footmanID, bestEnemyID);
+                    tiles = hashed == null ? null : actionTiles(view, footmanID, bestEnemyID);
                 }
-                weights = updateWeights(weights, features, rewardsPerUnit.get(footmanID), stateView, historyView, footmanID);
+                weights = updateWeights(weights, features, tiles, rewardsPerUnit.get(footmanID), view, footmanID);
             }
+            // The features did not change, only the weights, so just redo the dot products
+            qMatrix.updateQValues(weights);
+            phaseStart = metrics.end(AgentMetrics.Phase.LEARNING, phaseStart);
         }
 
         //Issue actions to units if they need actions.
-        Map<Integer, Action> issueActions = null;
+        Map<Integer, Integer> issueActions = null;
         if (shouldIssueActions) {
             issueActions = new HashMap<>();
-            // If people have been hit (isdamage) then reassign everyone to do something else
-            // Or, if there's anyone who needs something to do, reassign
+            // Footmen that were hit, lost their target or finished their action get a new order
+            for (int footmanID : replanning) {
+                int enemyID = selectAction(view, footmanID);
+                targetOf[footmanID] = enemyID;
+                issueActions.put(footmanID, enemyID);
+            }
+            // Remember the features of the action every footman is taking, they are what we learn from next time
             for (int footmanID : myFootmen) {
-                int enemyID = selectAction(stateView, historyView, footmanID);
-                if (inRange(stateView, footmanID, enemyID)) {
-                    issueActions.put(footmanID, Action.createPrimitiveAttack(footmanID, enemyID));
-                } else {
-                    issueActions.put(footmanID, Action.createCompoundAttack(footmanID, enemyID));
+                currentFeatures.put(footmanID, actionFeatures(view, footmanID, targetOf[footmanID]));
+                if (hashed != null) {
+                    currentTiles.put(footmanID, actionTiles(view, footmanID, targetOf[footmanID]));
                 }
             }
+            metrics.end(AgentMetrics.Phase.ACTION_SELECTION, phaseStart);
         }
 
+        metrics.end(AgentMetrics.Phase.TURN, turnStart);
+        if (turnDeadlineNanos > 0) {
+            long overrun = System.nanoTime() - deadline;
+            if (missedDeadline || overrun > 0) {
+                metrics.recordDeadlineMiss(Math.max(0L, overrun));
+            }
+        }
         return issueActions;
 
     }
 
+    /**
+     * @return True if the footman should be given a new order this turn
+     */
+    private boolean needsNewOrder(int footmanId) {
+        if (!incrementalReplanning || footmanId >= targetOf.length) {
+            return true;
+        }
+        int target = targetOf[footmanId];
+        return target < 0
+                || lastTurnEvents.hasDied(target)
+                || lastTurnEvents.hasActionEnded(footmanId)
+                || lastTurnEvents.getDamageTaken(footmanId) > 0;
+    }
+
+    /**
+     * Features of attacking an enemy, taken from the Q matrix when the pair was scored this turn. Exploration
+     * can pick an enemy that was not among the footman's candidates, those are computed on the spot.
+     */
+    private double[] actionFeatures(BattleView view, int footmanId, int enemyId) {
+        int row = qMatrix.rowOf(footmanId);
+        int column = qMatrix.columnOf(enemyId);
+        if (qMatrix.isScored(row, column)) {
+            return qMatrix.copyFeatures(row, column, new double[featurePipeline.size()]);
+        }
+        return calculateFeatureVector(view, footmanId, enemyId);
+    }
+
+    /**
+     * Hashed feature tiles of attacking an enemy, from the Q matrix when the pair was scored this turn.
+     */
+    private int[] actionTiles(BattleView view, int footmanId, int enemyId) {
+        int row = qMatrix.rowOf(footmanId);
+        int column = qMatrix.columnOf(enemyId);
+        if (qMatrix.isScored(row, column)) {
+            return qMatrix.copyTiles(row, column, new int[HashedFeatures.TILINGS]);
+        }
+        return calculateTiles(view, footmanId, enemyId, new int[HashedFeatures.TILINGS]);
+    }
+
+    //Hashes a pair the Q matrix did not score. Rare enough that the context is reloaded every time.
+    private int[] calculateTiles(BattleView view, int attackerId, int defenderId, int[] tiles) {
+        tileContext.invalidate();
+        tileContext.load(view, lastTurnEvents, attackerId, defenderId);
+        hashed.encode(tileContext, tiles, 0);
+        return tiles;
+    }
+
     /**
      * Determines if the two units are in attack range of each other.
-     * @param stateView
+     * @param view
      * @param friendlyID
      * @param enemyID
      * @return
      */
-    public boolean inRange(State.StateView stateView, int friendlyID, int enemyID) {
-        return Math.abs(stateView.getUnit(friendlyID).getXPosition() - stateView.getUnit(enemyID).getXPosition()) <= 1 && Math.abs(stateView.getUnit(friendlyID).getYPosition() - stateView.getUnit(enemyID).getYPosition()) <= 1;
+    public static boolean inRange(BattleView view, int friendlyID, int enemyID) {
+        return Math.abs(view.getXPosition(friendlyID) - view.getXPosition(enemyID)) <= 1 && Math.abs(view.getYPosition(friendlyID) - view.getYPosition(enemyID)) <= 1;
     }
 
     /**
@@ -285,68 +828,210 @@ public class RLAgent extends Agent {
      */
     @Override
     public void terminalStep(State.StateView stateView, History.HistoryView historyView) {
+        endEpisode();
+    }
+
+    /**
+     * The body of terminalStep, also called by the simulator when an episode ends.
+     */
+    public void endEpisode() {
 
         if (isTesting) {
             //If we have reached the end of a test episode, compute cumulative reward data.
-            Double sum = 0.0;
-            for (Double reward : inEpisodeRewards) {
-                sum += reward;
-            }
-            System.out.println("Computing Cumulative Rewards.");
-            cumulativeRewards.add(sum / inEpisodeRewards.size());
+            log.debug("rewards", "Computing Cumulative Rewards.");
+            testEpisodeRewards.add(episodeRewards.getMean());
             if (currentEpisode % 15 == 14) {
-                Double cumulativeSum = 0.0;
-                for (Double cumulativeReward : cumulativeRewards) {
-                    cumulativeSum += cumulativeReward;
-                }
-                averagedRewards.add(cumulativeSum / cumulativeRewards.size());
-                cumulativeRewards = new ArrayList<>();
+                addToLearningCurve(currentEpisode, testEpisodeRewards);
+                testEpisodeRewards.reset();
+            }
+        }
+        if (evaluator != null) {
+            // Every 10 learning episodes make up a block, test a copy of the weights and keep going
+            if (currentEpisode % 10 == 9) {
+                pendingEvaluations.add(evaluator.submit(weights, hashed, evaluationSeeds.nextLong(), optionArguments()));
             }
+            mergeEvaluations(false);
         }
 
         //Debug long for winning episodes
         if(myFootmen.size() > enemyFootmen.size()){
-            System.out.println("We win the previous episode.");
+            log.debug("episode.won", "We win the previous episode.");
         }
 
         currentEpisode++;
+        metrics.countEpisode();
+
+        // Workers share their weights, the trainer takes care of saving them and of stopping
+        if (!standalone) {
+            return;
+        }
 
-        // Save your weights
-        saveWeights(weights);
+        // Checkpoint your weights, the file is written in the background
+        long start = metrics.begin();
+        if (currentEpisode % checkpointInterval == 0) {
+            checkpointer.save(weights, featurePipeline.getNames(), hashed, currentEpisode, random, averagedRewards, testEpisodeRewards);
+        }
+        metrics.end(AgentMetrics.Phase.TERMINAL_IO, start);
 
         //Print the test data at the end of all the episodes
-        if (currentEpisode == numEpisodes - 1) {
+        // A resumed run may already be past the end
+        if (currentEpisode >= numEpisodes - 1) {
+            checkpointer.close();
+            learningCurve.close();
+            // The text weights file is only needed once, for the final weights
+            saveWeights(toBoxed(weights));
+            // Everything logged has to be out before the table is printed, and before the JVM exits
+            close();
             printTestData(averagedRewards);
             System.exit(0);
         }
 
     }
 
+    /**
+     * Writes out the transition trace, unregisters the metrics from JMX and stops the log. Trainers call this
+     * when a worker is done.
+     */
+    public void close() {
+        if (recorder != null) {
+            recorder.close();
+        }
+        metrics.close();
+        log.close();
+    }
+
+    /**
+     * Adds the result of an evaluation block to the learning curve.
+     *
+     * @param episode     Last episode of the block
+     * @param testRewards Average reward of each of the block's test episodes
+     */
+    private void addToLearningCurve(int episode, RunningStats testRewards) {
+        averagedRewards.add(testRewards.getMean());
+        int gamesPlayed = 10 * (averagedRewards.size() - 1);
+        if (learningCurve != null) {
+            learningCurve.write(episode, gamesPlayed, testRewards);
+        }
+        log.info("curve", "After {games} games the average test reward is {reward}", gamesPlayed, testRewards.getMean());
+    }
+
+    /**
+     * Stops playing test episodes. From then on every episode learns, and after every 10 of them a copy of the
+     * weights is tested by the evaluator while learning goes on. Results are added to the learning curve in
+     * order as they come in, {@link #finishBackgroundEvaluation} waits for the ones still out.
+     *
+     * @param evaluator Plays the test episodes
+     */
+    public void evaluateInBackground(BackgroundEvaluator evaluator) {
+        this.evaluator = evaluator;
+        this.evaluationSeeds = new SplittableRandom(random.nextLong());
+    }
+
+    /**
+     * Waits for every background evaluation and adds them to the learning curve. Call after the last episode.
+     */
+    public void finishBackgroundEvaluation() {
+        mergeEvaluations(true);
+    }
+
+    //Adds finished evaluations to the learning curve, stopping at the first one still running unless waiting
+    private void mergeEvaluations(boolean wait) {
+        while (!pendingEvaluations.isEmpty() && (wait || pendingEvaluations.peek().isDone())) {
+            try {
+                // In background mode a block is just its 10 learning episodes
+                addToLearningCurve(10 * averagedRewards.size() - 1, pendingEvaluations.poll().get());
+            } catch (ExecutionException ex) {
+                throw new IllegalStateException("Background evaluation failed", ex.getCause());
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    //The options this agent was created with, as name=value arguments
+    private String[] optionArguments() {
+        List<String> arguments = new ArrayList<>();
+        for (Map.Entry<String, String> option : options.entrySet()) {
+            arguments.add(option.getKey() + "=" + option.getValue());
+        }
+        return arguments.toArray(new String[0]);
+    }
+
     /**
      * Calculate the updated weights for this agent.
      *
      * @param oldWeights  Weights prior to update
      * @param oldFeatures Features from (s,a)
      * @param totalReward Cumulative discounted reward for this footman.
-     * @param stateView   Current state of the game.
-     * @param historyView History of the game up until this point
+     * @param view        The battle at the current turn
      * @param footmanId   The footman we are updating the weights for
      * @return The updated weight vector.
      */
-    public Double[] updateWeights(Double[] oldWeights, Double[] oldFeatures, Double totalReward, State.StateView stateView, History.HistoryView historyView, int footmanId) {
+    public double[] updateWeights(double[] oldWeights, double[] oldFeatures, double totalReward, BattleView view, int footmanId) {
+        return updateWeights(oldWeights, oldFeatures, hashed == null ? null : previousTiles.get(footmanId), totalReward, view, footmanId);
+    }
+
+    /**
+     * Same as {@link #updateWeights(double[], double[], double, BattleView, int)}, also learning the hashed
+     * features of (s,a). Only the weights of its tiles are touched. With experience replay the hashed weights
+     * still learn from the latest transition only, the buffer keeps dense features.
+     *
+     * @param oldTiles Hashed feature tiles from (s,a), or null when there are no hashed features
+     */
+    public double[] updateWeights(double[] oldWeights, double[] oldFeatures, int[] oldTiles, double totalReward, BattleView view, int footmanId) {
         //We don't want to update the weights if we are testing.
         if (isTesting) {
             return oldWeights;
         }
         //Update weights using the algorithm given in class.
-        Double prevQ = 0.0;
-        for (int i = 0; i < oldFeatures.length; i++) {
-            prevQ += oldFeatures[i] * oldWeights[i];
+        double prevQ = dot(oldWeights, oldFeatures);
+        if (oldTiles != null) {
+            prevQ += hashed.value(oldTiles, 0);
         }
-        int bestDefenderID = selectAction(stateView, historyView, footmanId);
-        Double qNew = calcQValue(stateView, historyView, footmanId, bestDefenderID);
-        for (int i = 0; i < oldWeights.length; i++) {
-            oldWeights[i] = oldWeights[i] + learningRate * (totalReward + gamma * qNew - prevQ) * oldFeatures[i];
+        // The target uses the best action in the current state, which the Q matrix already has
+        double qNew;
+        int row = qMatrix.rowOf(footmanId);
+        if (row >= 0 && !qMatrix.isDecided(row) && qMatrix.getColumnCount() > 0) {
+            // The turn's deadline came before this footman was scored, it is learned from on a later turn
+            return oldWeights;
+        }
+        if (row >= 0) {
+            qNew = qMatrix.getMaxQValue(row);
+        } else {
+            qNew = Double.NEGATIVE_INFINITY;
+            for (int enemy : enemyFootmen) {
+                qNew = Math.max(qNew, calcQValue(view, footmanId, enemy));
+            }
+        }
+        if (qNew == Double.NEGATIVE_INFINITY) {
+            // No enemies left, so there is no future value
+            qNew = 0.0;
+        }
+        if (recorder != null) {
+            recorder.record(currentEpisode, view.getTurnNumber(), footmanId, totalReward, qNew, oldFeatures);
+        }
+        if (oldTiles != null) {
+            // Each tile is a feature of value 1, so its gradient step is the TD error spread over the tilings
+            hashed.update(oldTiles, 0, learningRate * (totalReward + gamma * qNew - prevQ) / HashedFeatures.TILINGS, weightUpdater);
+        }
+        if (replayBuffer == null) {
+            double[] gradient = oldFeatures;
+            if (featurePipeline.hasFrozen()) {
+                System.arraycopy(oldFeatures, 0, gradientScratch, 0, gradientScratch.length);
+                featurePipeline.maskFrozen(gradientScratch);
+                gradient = gradientScratch;
+            }
+            weightUpdater.addScaled(oldWeights, gradient, learningRate * (totalReward + gamma * qNew - prevQ));
+            return oldWeights;
+        }
+
+        // Keep the transition and learn from a random mini-batch of everything we have kept
+        replayBuffer.add(oldFeatures, totalReward, qNew);
+        if (replayBuffer.size() >= replayBatchSize) {
+            double[] gradient = replayBuffer.sampleGradient(oldWeights, gamma, replayBatchSize, random);
+            featurePipeline.maskFrozen(gradient);
+            weightUpdater.addScaled(oldWeights, gradient, learningRate);
         }
         return oldWeights;
     }
@@ -355,26 +1040,34 @@ public class RLAgent extends Agent {
      * Given a footman and the current state and history of the game select the enemy that this unit should
      * attack. This is where you would do the epsilon-greedy action selection.
      *
-     * @param stateView   Current state of the game
-     * @param historyView The entire history of this episode
+     * @param view        The battle at the current turn
      * @param attackerId  The footman that will be attacking
      * @return The enemy footman ID this unit should attack
      */
-    public int selectAction(State.StateView stateView, History.HistoryView historyView, int attackerId) {
+    public int selectAction(BattleView view, int attackerId) {
+        int row = qMatrix.rowOf(attackerId);
+        if (row >= 0 && !qMatrix.isDecided(row) && !enemyFootmen.isEmpty()) {
+            // Scoring ran out of time before this footman
+            return keptOrNearestTarget(view, attackerId);
+        }
+
         //Uses greedy epsilon selection
         int enemyID = -1;
         // Decide whether or not to follow the policy based on the Epsilon Greedy Exploration Strategy
-        Double percentToFollowPolicy = random.nextDouble();
+        double percentToFollowPolicy = random.nextDouble();
         if (percentToFollowPolicy < epsilon) {
             //We aren't following the policy anymore, instead pick a random enemy to attack.
             int randomEnemyIndex = random.nextInt(enemyFootmen.size());
             enemyID = enemyFootmen.get(randomEnemyIndex);
+        } else if (qMatrix.rowOf(attackerId) >= 0) {
+            // Already evaluated this turn, take the greedy enemy from the Q matrix
+            enemyID = qMatrix.getDefenderId(qMatrix.getBestColumn(qMatrix.rowOf(attackerId)));
         } else {
             // We are following the policy. Look at the Q value for attacking each enemy and
             // pick the enemy whose q value is largest.
-            Double maxQValue = Double.NEGATIVE_INFINITY;
+            double maxQValue = Double.NEGATIVE_INFINITY;
             for (int enemy : enemyFootmen) {
-                Double qValue = calcQValue(stateView, historyView, attackerId, enemy);
+                double qValue = calcQValue(view, attackerId, enemy);
                 if (qValue > maxQValue) {
                     maxQValue = qValue;
                     enemyID = enemy;
@@ -384,6 +1077,29 @@ public class RLAgent extends Agent {
         return enemyID;
     }
 
+    /**
+     * Target of a footman the anytime evaluation did not get to: the one it already has if that is still alive,
+     * otherwise the nearest enemy.
+     */
+    private int keptOrNearestTarget(BattleView view, int attackerId) {
+        int target = attackerId < targetOf.length ? targetOf[attackerId] : -1;
+        if (target >= 0 && enemyFootmen.contains(target)) {
+            return target;
+        }
+        int x = view.getXPosition(attackerId);
+        int y = view.getYPosition(attackerId);
+        int nearest = -1;
+        int nearestDistance = Integer.MAX_VALUE;
+        for (int enemy : enemyFootmen) {
+            int distance = Math.max(Math.abs(view.getXPosition(enemy) - x), Math.abs(view.getYPosition(enemy) - y));
+            if (distance < nearestDistance) {
+                nearestDistance = distance;
+                nearest = enemy;
+            }
+        }
+        return nearest;
+    }
+
     /**
      * Given the current state and the footman in question calculate the reward received on the last turn.
      * This is where you will check for things like Did this footman take or give damage? Did this footman die
@@ -411,36 +1127,26 @@ public class RLAgent extends Agent {
      * for (Map.Entry<Integer, Action> commandEntry : commandsIssued.entrySet()) {
      * System.out.println("Unit " + commandEntry.getKey() + " was command to " + commandEntry.getValue().toString);
      * }
+     * <p>
+     * The logs themselves are summarized once per turn into lastTurnEvents, this just reads the totals.
      *
-     * @param stateView   The current state of the game.
-     * @param historyView History of the episode up until this turn.
+     * @param view        The battle at the current turn
      * @param footmanId   The footman ID you are looking for the reward from.
      * @return The current reward
      */
-    public Double calculateReward(State.StateView stateView, History.HistoryView historyView, int footmanId) {
-        Double reward = 0.0;
-        int turn = stateView.getTurnNumber() - 1;
+    public double calculateReward(BattleView view, int footmanId) {
+        double reward = 0.0;
 
-        // Calculates rewards for damage
-        for (DamageLog dlog : historyView.getDamageLogs(turn)) {
-            if (myFootmen.contains(dlog.getDefenderID())) {
-                reward -= dlog.getDamage();
-            } else if (enemyFootmen.contains(dlog.getDefenderID())) {
-                reward += dlog.getDamage();
-            }
-        }
+        // Calculates rewards for damage to the units still alive on either side
+        reward += lastTurnEvents.getDamageToEnemy();
+        reward -= lastTurnEvents.getDamageToFriendly();
 
         // Calculates rewards for deaths
-        for (DeathLog dlog : historyView.getDeathLogs(turn)) {
-            if (dlog.getController() == ENEMY_PLAYERNUM) {
-                reward += (100.0 / myFootmen.size());
-            } else {
-                reward -= (100.0/ myFootmen.size());
-            }
-        }
+        reward += lastTurnEvents.getEnemyDeaths() * (100.0 / myFootmen.size());
+        reward -= lastTurnEvents.getFriendlyDeaths() * (100.0 / myFootmen.size());
 
         // Adds "reward" if the unit was issued an action last turn.
-        reward -= historyView.getCommandsIssued(playernum, turn).containsKey(footmanId) ? 0.1 : 0;
+        reward -= lastTurnEvents.wasCommandIssued(footmanId) ? 0.1 : 0;
 
         return reward;
     }
@@ -453,19 +1159,32 @@ public class RLAgent extends Agent {
      * This returns the Q-value according to your feature approximation. This is where you will calculate
      * your features and multiply them by your current weights to get the approximate Q-value.
      *
-     * @param stateView   Current SEPIA state
-     * @param historyView Episode history up to this point in the game
+     * @param view        The battle at the current turn
      * @param attackerId  Your footman. The one doing the attacking.
      * @param defenderId  An enemy footman that your footman would be attacking
      * @return The approximate Q-value
      */
-    public Double calcQValue(State.StateView stateView, History.HistoryView historyView, int attackerId, int defenderId) {
-        Double[] featureVector = calculateFeatureVector(stateView, historyView, attackerId, defenderId);
-        Double qVal = 0.0;
+    public double calcQValue(BattleView view, int attackerId, int defenderId) {
+        double qValue = dot(weights, calculateFeatureVector(view, attackerId, defenderId, featureScratch));
+        if (hashed != null) {
+            qValue += hashed.value(calculateTiles(view, attackerId, defenderId, tileScratch), 0);
+        }
+        return qValue;
+    }
+
+    /**
+     * Dot product of the weights with a feature vector. Both are primitive so no boxing happens here.
+     *
+     * @param weights  Q-function weights
+     * @param features Feature vector of the same length
+     * @return The approximate Q-value
+     */
+    public static double dot(double[] weights, double[] features) {
+        double qVal = 0.0;
 
         // Calculates cumulative some of the features times their respective weights
-        for (int i = 0; i < featureVector.length; i++) {
-            qVal += featureVector[i] * weights[i];
+        for (int i = 0; i < features.length; i++) {
+            qVal += features[i] * weights[i];
         }
 
         return qVal;
@@ -481,48 +1200,59 @@ public class RLAgent extends Agent {
      * It is a good idea to make the first value in your array a constant. This just helps remove any offset
      * from 0 in the Q-function. The other features are up to you. Many are suggested in the assignment
      * description.
+     * <p>
+     * The features are explained in {@link Features}, which ones a run uses is set in its {@link FeaturePipeline}.
      *
-     * @param stateView   Current state of the SEPIA game
-     * @param historyView History of the game up until this turn
+     * @param view        The battle at the current turn
      * @param attackerId  Your footman. The one doing the attacking.
      * @param defenderId  An enemy footman. The one you are considering attacking.
      * @return The array of feature function outputs.
      */
-    public Double[] calculateFeatureVector(State.StateView stateView, History.HistoryView historyView, int attackerId, int defenderId) {
-        //If we have already cached this value, reretrieve it
-        if(currentFeatures.containsKey(attackerId)){
-            return currentFeatures.get(attackerId);
-        }
-
-        //Constant
-        Double[] features = new Double[]{1.0, 0.0, 0.0, 0.0};
+    public double[] calculateFeatureVector(BattleView view, int attackerId, int defenderId) {
+        return calculateFeatureVector(view, attackerId, defenderId, new double[featurePipeline.size()]);
+    }
 
-        //If the enemy we are attacking is attacking me
-        double isAttackingEnemyAttackingMe = 0.0;
-        if(stateView.getTurnNumber() > 0) {
-            List<DamageLog> dlogs = historyView.getDamageLogs(stateView.getTurnNumber() - 1);
-            for(DamageLog log : dlogs){
-                if(log.getAttackerID() == defenderId && log.getDefenderID() == attackerId){
-                    isAttackingEnemyAttackingMe = 1.0;
-                }
-            }
+    /**
+     * Same as {@link #calculateFeatureVector(BattleView, int, int)} but writes the
+     * features into a caller supplied array, so it never allocates.
+     * <p>
+     * Features are cached per (attacker, defender) pair for the current turn, so each pair is only computed once.
+     *
+     * @param view        The battle at the current turn
+     * @param attackerId  Your footman. The one doing the attacking.
+     * @param defenderId  An enemy footman. The one you are considering attacking.
+     * @param features    Array of featurePipeline.size() entries to write into
+     * @return The features array that was passed in
+     */
+    public double[] calculateFeatureVector(BattleView view, int attackerId, int defenderId, double[] features) {
+        //If we have already computed this pair this turn, reretrieve it
+        if (featureCache.get(attackerId, defenderId, features)) {
+            return features;
         }
-        features[1] = isAttackingEnemyAttackingMe;
-
-        //Distance between attacker and defender
-        Unit.UnitView attacker = stateView.getUnit(attackerId);
-        Unit.UnitView defender = stateView.getUnit(defenderId);
-        features[2] = 1.0 / (Math.abs(attacker.getXPosition() - defender.getXPosition()) + Math.abs(attacker.getYPosition() - defender.getYPosition()));
 
-        //Ratio of health
-        features[3] = ((double) attacker.getHP()) / ((double) defender.getHP());
+        featurePipeline.extract(view, lastTurnEvents, attackerId, defenderId, features);
 
         //Cache features
-        currentFeatures.put(attackerId,features);
+        featureCache.put(attackerId, defenderId, features);
 
         return features;
     }
 
+    /**
+     * Computes features without the cache and with the caller's context, so several threads can do it at once.
+     * Used by the parallel evaluation in {@link QMatrix}.
+     *
+     * @param context    Extraction context owned by the calling thread
+     * @param view       The battle at the current turn
+     * @param attackerId Your footman. The one doing the attacking.
+     * @param defenderId An enemy footman. The one you are considering attacking.
+     * @param features   Array of featurePipeline.size() entries to write into
+     * @return The features array that was passed in
+     */
+    double[] extractFeatures(FeatureContext context, BattleView view, int attackerId, int defenderId, double[] features) {
+        return featurePipeline.extract(context, view, lastTurnEvents, attackerId, defenderId, features);
+    }
+
     /**
      * DO NOT CHANGE THIS!
      * <p>
@@ -610,6 +1340,49 @@ public class RLAgent extends Agent {
         return null;
     }
 
+    /**
+     * @return The per-turn feature cache, exposes hit and miss counters
+     */
+    public FeatureCache getFeatureCache() {
+        return featureCache;
+    }
+
+    /**
+     * Boxes the weights for the text weight file.
+     */
+    private static Double[] toBoxed(double[] weights) {
+        Double[] boxed = new Double[weights.length];
+        for (int i = 0; i < weights.length; i++) {
+            boxed[i] = weights[i];
+        }
+        return boxed;
+    }
+
+    /**
+     * Reads the text weight file saveWeights writes, the same way loadWeights does but without boxing. Shared
+     * with {@link InferenceAgent}.
+     *
+     * @return The weights, or null if the file does not exist or can't be read
+     */
+    static double[] readWeightsFile() {
+        Path path = Paths.get("agent_weights", "weights.txt");
+        if (!Files.exists(path)) {
+            System.err.println("Failed to load weights. File does not exist");
+            return null;
+        }
+        try {
+            List<String> lines = Files.readAllLines(path);
+            double[] weights = new double[lines.size()];
+            for (int i = 0; i < weights.length; i++) {
+                weights[i] = Double.parseDouble(lines.get(i));
+            }
+            return weights;
+        } catch (IOException | NumberFormatException ex) {
+            System.err.println("Failed to load weights from file. Reason: " + ex.getMessage());
+        }
+        return null;
+    }
+
     @Override
     public void savePlayerData(OutputStream outputStream) {
 
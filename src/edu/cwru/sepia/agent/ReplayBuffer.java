@@ -0,0 +1,98 @@
+package edu.cwru.sepia.agent;
+
+import java.util.Random;
+
+/**
+ * Fixed size ring buffer of (features, reward, best next Q) transitions. Everything lives in one primitive
+ * array, so adding a transition never allocates and the memory used stays the same however long we train.
+ * Once full, the oldest transition is overwritten.
+ */
+public class ReplayBuffer {
+
+    private final int numFeatures;
+    private final int capacity;
+
+    //Each record is the features followed by the reward and the best Q-value of the next state
+    private final int recordLength;
+    private final double[] records;
+
+    private int next;
+    private int size;
+
+    //Mean gradient of the last sampled mini-batch
+    private final double[] gradient;
+
+    /**
+     * @param numFeatures Length of the feature vectors
+     * @param capacity    Maximum number of transitions kept
+     */
+    public ReplayBuffer(int numFeatures, int capacity) {
+        this.numFeatures = numFeatures;
+        this.capacity = capacity;
+        this.recordLength = numFeatures + 2;
+        this.records = new double[capacity * recordLength];
+        this.gradient = new double[numFeatures];
+    }
+
+    /**
+     * Stores a transition, overwriting the oldest one if the buffer is full.
+     *
+     * @param features Features of the (state, action) pair taken
+     * @param reward   Reward received for it
+     * @param nextQ    max Q of the state we ended up in
+     */
+    public void add(double[] features, double reward, double nextQ) {
+        int offset = next * recordLength;
+        System.arraycopy(features, 0, records, offset, numFeatures);
+        records[offset + numFeatures] = reward;
+        records[offset + numFeatures + 1] = nextQ;
+
+        next = (next + 1) % capacity;
+        if (size < capacity) {
+            size++;
+        }
+    }
+
+    /**
+     * Samples a mini-batch uniformly with replacement and computes the mean of TD error * features over it,
+     * the direction to move the weights in.
+     *
+     * @param weights   Current weights
+     * @param gamma     Discount factor
+     * @param batchSize Number of transitions to sample
+     * @param random    Random stream to sample with
+     * @return The mean gradient. The array is reused by the next call.
+     */
+    public double[] sampleGradient(double[] weights, double gamma, int batchSize, Random random) {
+        for (int f = 0; f < numFeatures; f++) {
+            gradient[f] = 0.0;
+        }
+
+        for (int b = 0; b < batchSize; b++) {
+            int offset = random.nextInt(size) * recordLength;
+
+            double q = 0.0;
+            for (int f = 0; f < numFeatures; f++) {
+                q += weights[f] * records[offset + f];
+            }
+            double tdError = records[offset + numFeatures] + gamma * records[offset + numFeatures + 1] - q;
+
+            for (int f = 0; f < numFeatures; f++) {
+                gradient[f] += tdError * records[offset + f];
+            }
+        }
+
+        for (int f = 0; f < numFeatures; f++) {
+            gradient[f] /= batchSize;
+        }
+        return gradient;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+}
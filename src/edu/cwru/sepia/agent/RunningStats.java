@@ -0,0 +1,86 @@
+package edu.cwru.sepia.agent;
+
+/**
+ * Count, mean, variance, min and max of a stream of values, kept in constant space. The mean and variance
+ * are updated with Welford's method, which stays accurate over long streams where a running sum of squares
+ * would lose precision.
+ */
+public class RunningStats {
+
+    private long count;
+    private double mean;
+    //Sum of squared differences from the current mean
+    private double m2;
+    private double min = Double.POSITIVE_INFINITY;
+    private double max = Double.NEGATIVE_INFINITY;
+
+    public void add(double value) {
+        count++;
+        double delta = value - mean;
+        mean += delta / count;
+        m2 += delta * (value - mean);
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+    }
+
+    public void reset() {
+        count = 0;
+        mean = 0.0;
+        m2 = 0.0;
+        min = Double.POSITIVE_INFINITY;
+        max = Double.NEGATIVE_INFINITY;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * @return The mean, or NaN when nothing was added, like dividing an empty sum by its size would give
+     */
+    public double getMean() {
+        return count == 0 ? Double.NaN : mean;
+    }
+
+    /**
+     * @return The sample variance, 0 for fewer than two values
+     */
+    public double getVariance() {
+        return count < 2 ? 0.0 : m2 / (count - 1);
+    }
+
+    public double getStandardDeviation() {
+        return Math.sqrt(getVariance());
+    }
+
+    public double getMin() {
+        return min;
+    }
+
+    public double getMax() {
+        return max;
+    }
+
+    //Sum of squared differences from the mean, for saving the exact state
+    double getSumOfSquaredDifferences() {
+        return m2;
+    }
+
+    /**
+     * Puts back a state saved with the getters, so adding values goes on as if nothing happened.
+     */
+    void restore(long count, double mean, double sumOfSquaredDifferences, double min, double max) {
+        this.count = count;
+        this.mean = mean;
+        this.m2 = sumOfSquaredDifferences;
+        this.min = min;
+        this.max = max;
+    }
+
+    /**
+     * Makes this the same as other.
+     */
+    void copyFrom(RunningStats other) {
+        restore(other.count, other.mean, other.m2, other.min, other.max);
+    }
+}
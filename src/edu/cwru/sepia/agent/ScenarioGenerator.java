@@ -0,0 +1,321 @@
+package edu.cwru.sepia.agent;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Writes SEPIA map and configuration files for footman battles of any size, so the agent can be trained and
+ * benchmarked on more than the two scenarios that come with the assignment.
+ * <p>
+ * Generated files are copies of data/rl_10fv10f.xml and data/10fv10fConfig.xml with the units replaced, so the
+ * templates, footman stats and agent settings stay exactly those of the assignment.
+ * <p>
+ * Usage: ScenarioGenerator &lt;friendly footmen&gt; &lt;enemy footmen&gt; [blocks|scatter|surround] [seed] [directory]
+ */
+public class ScenarioGenerator {
+
+    public static final Path BASE_MAP = Paths.get("data", "rl_10fv10f.xml");
+    public static final Path BASE_CONFIG = Paths.get("data", "10fv10fConfig.xml");
+
+    /**
+     * How the two sides are placed.
+     */
+    public enum Layout {
+        /** Two rectangular formations facing each other, like the assignment maps */
+        BLOCKS,
+        /** Each side scattered at random over its own half of the map */
+        SCATTER,
+        /** Our footmen in a block in the middle with the enemy in rings around them */
+        SURROUND
+    }
+
+    //Free tiles between the units and the edge of the map
+    private static final int MARGIN = 2;
+    //Tiles between the two formations
+    private static final int GAP = 8;
+
+    private final int friendly;
+    private final int enemy;
+    private final Layout layout;
+    private final long seed;
+
+    /**
+     * @param friendly Number of footmen we control
+     * @param enemy    Number of enemy footmen
+     * @param layout   How the units are placed
+     * @param seed     Seed for the random layouts, the same seed always gives the same map
+     */
+    public ScenarioGenerator(int friendly, int enemy, Layout layout, long seed) {
+        if (friendly < 1 || enemy < 1) {
+            throw new IllegalArgumentException("Both sides need at least one footman");
+        }
+        this.friendly = friendly;
+        this.enemy = enemy;
+        this.layout = layout;
+        this.seed = seed;
+    }
+
+    /**
+     * @return Base file name of the scenario, for example rl_50fv50f_blocks
+     */
+    public String getName() {
+        return "rl_" + friendly + "fv" + enemy + "f_" + layout.name().toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Writes the map and a configuration that plays it.
+     *
+     * @param directory Where to write the files
+     * @return The map file
+     */
+    public Path write(Path directory) throws IOException {
+        Files.createDirectories(directory);
+        Path map = directory.resolve(getName() + ".xml");
+        writeMap(map);
+        writeConfig(map, directory.resolve(getName() + "Config.xml"));
+        return map;
+    }
+
+    /**
+     * Writes the map file alone.
+     */
+    public void writeMap(Path map) throws IOException {
+        List<int[]> ours = new ArrayList<>();
+        List<int[]> theirs = new ArrayList<>();
+        place(ours, theirs);
+
+        // Shift everything so the units start MARGIN tiles from the top left corner
+        int minX = Integer.MAX_VALUE;
+        int minY = Integer.MAX_VALUE;
+        int maxX = 0;
+        int maxY = 0;
+        for (List<int[]> side : List.of(ours, theirs)) {
+            for (int[] position : side) {
+                minX = Math.min(minX, position[0]);
+                minY = Math.min(minY, position[1]);
+                maxX = Math.max(maxX, position[0]);
+                maxY = Math.max(maxY, position[1]);
+            }
+        }
+        for (List<int[]> side : List.of(ours, theirs)) {
+            for (int[] position : side) {
+                position[0] += MARGIN - minX;
+                position[1] += MARGIN - minY;
+            }
+        }
+
+        Document document = parse(BASE_MAP);
+        Element root = document.getDocumentElement();
+        root.setAttribute("xExtent", Integer.toString(maxX - minX + 2 * MARGIN + 1));
+        root.setAttribute("yExtent", Integer.toString(maxY - minY + 2 * MARGIN + 1));
+
+        int nextId = 1;
+        for (Element player : children(root, "player")) {
+            int playerId = Integer.parseInt(childText(player, "ID"));
+            List<int[]> positions = playerId == RLAgent.ENEMY_PLAYERNUM ? theirs : ours;
+            List<Element> units = children(player, "unit");
+            if (units.isEmpty()) {
+                throw new IOException(BASE_MAP + " has no unit to copy for player " + playerId);
+            }
+
+            // Every new unit is a copy of the player's first footman, placed where the old units were
+            Element prototype = units.get(0);
+            for (int[] position : positions) {
+                Element unit = (Element) prototype.cloneNode(true);
+                setChildText(unit, "ID", Integer.toString(nextId++));
+                setChildText(unit, "xPosition", Integer.toString(position[0]));
+                setChildText(unit, "yPosition", Integer.toString(position[1]));
+                player.insertBefore(unit, prototype);
+            }
+            for (Element unit : units) {
+                player.removeChild(unit);
+            }
+        }
+        root.setAttribute("nextTargetID", Integer.toString(nextId));
+
+        try {
+            Transformer transformer = TransformerFactory.newInstance().newTransformer();
+            transformer.setOutputProperty(OutputKeys.INDENT, "yes");
+            transformer.setOutputProperty(OutputKeys.STANDALONE, "yes");
+            transformer.setOutputProperty("{http://xml.apache.org/xslt}indent-amount", "4");
+            transformer.transform(new DOMSource(document), new StreamResult(map.toFile()));
+        } catch (TransformerException ex) {
+            throw new IOException("Failed to write " + map + ". Reason: " + ex.getMessage(), ex);
+        }
+    }
+
+    /**
+     * Writes a copy of the base configuration that points at the given map.
+     */
+    public void writeConfig(Path map, Path config) throws IOException {
+        String text = new String(Files.readAllBytes(BASE_CONFIG), StandardCharsets.UTF_8);
+        // Map paths in configurations are relative to the working directory
+        String mapPath = map.toString().replace('\\', '/');
+        text = text.replaceFirst("<Map>[^<]*</Map>", "<Map>" + mapPath + "</Map>");
+        Files.write(config, text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    //Positions before shifting, may be negative
+    private void place(List<int[]> ours, List<int[]> theirs) {
+        switch (layout) {
+            case BLOCKS:
+                block(ours, friendly, 0, 0);
+                // Centered on each other when the sides differ in size
+                block(theirs, enemy, blockWidth(friendly) + GAP, (blockHeight(friendly) - blockHeight(enemy)) / 2);
+                break;
+            case SCATTER: {
+                Random random = new Random(seed);
+                int height = Math.max(blockHeight(friendly), blockHeight(enemy)) * 2;
+                int ourWidth = blockWidth(friendly) * 2;
+                scatter(ours, friendly, 0, ourWidth, height, random);
+                scatter(theirs, enemy, ourWidth + GAP, blockWidth(enemy) * 2, height, random);
+                break;
+            }
+            case SURROUND: {
+                block(ours, friendly, 0, 0);
+                surround(theirs, enemy, blockWidth(friendly), blockHeight(friendly));
+                break;
+            }
+            default:
+                throw new IllegalStateException("Unknown layout " + layout);
+        }
+    }
+
+    //Formations are about twice as tall as they are wide, with a free tile between units like the assignment maps
+    private static int blockRows(int units) {
+        return (int) Math.ceil(Math.sqrt(2.0 * units));
+    }
+
+    private static int blockWidth(int units) {
+        return 2 * ((units + blockRows(units) - 1) / blockRows(units)) - 1;
+    }
+
+    private static int blockHeight(int units) {
+        return 2 * Math.min(units, blockRows(units)) - 1;
+    }
+
+    private static void block(List<int[]> positions, int units, int left, int top) {
+        int rows = blockRows(units);
+        for (int i = 0; i < units; i++) {
+            positions.add(new int[]{left + 2 * (i / rows), top + 2 * (i % rows)});
+        }
+    }
+
+    private static void scatter(List<int[]> positions, int units, int left, int width, int height, Random random) {
+        Set<Integer> taken = new HashSet<>();
+        int first = positions.size();
+        while (positions.size() - first < units) {
+            int x = random.nextInt(width);
+            int y = random.nextInt(height);
+            if (taken.add(y * width + x)) {
+                positions.add(new int[]{left + x, y});
+            }
+        }
+    }
+
+    //Square rings around the block, two tiles apart, each starting GAP / 2 tiles out
+    private static void surround(List<int[]> positions, int units, int blockWidth, int blockHeight) {
+        for (int ring = 0; positions.size() < units; ring++) {
+            int distance = GAP / 2 + 2 * ring;
+            int left = -distance;
+            int top = -distance;
+            int right = blockWidth - 1 + distance;
+            int bottom = blockHeight - 1 + distance;
+            for (int x = left; x <= right && positions.size() < units; x += 2) {
+                positions.add(new int[]{x, top});
+                if (positions.size() < units) {
+                    positions.add(new int[]{x, bottom});
+                }
+            }
+            for (int y = top + 2; y < bottom && positions.size() < units; y += 2) {
+                positions.add(new int[]{left, y});
+                if (positions.size() < units) {
+                    positions.add(new int[]{right, y});
+                }
+            }
+        }
+    }
+
+    private static Document parse(Path path) throws IOException {
+        try {
+            DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+            factory.setIgnoringElementContentWhitespace(false);
+            Document document = factory.newDocumentBuilder().parse(path.toFile());
+            stripWhitespace(document.getDocumentElement());
+            return document;
+        } catch (ParserConfigurationException | SAXException ex) {
+            throw new IOException("Failed to parse " + path + ". Reason: " + ex.getMessage(), ex);
+        }
+    }
+
+    //The transformer indents from scratch, the original indentation would double up with it
+    private static void stripWhitespace(Node node) {
+        NodeList nodes = node.getChildNodes();
+        for (int i = nodes.getLength() - 1; i >= 0; i--) {
+            Node child = nodes.item(i);
+            if (child.getNodeType() == Node.TEXT_NODE && child.getTextContent().trim().isEmpty()) {
+                node.removeChild(child);
+            } else if (child.getNodeType() == Node.ELEMENT_NODE) {
+                stripWhitespace(child);
+            }
+        }
+    }
+
+    private static List<Element> children(Element parent, String name) {
+        List<Element> children = new ArrayList<>();
+        NodeList nodes = parent.getChildNodes();
+        for (int i = 0; i < nodes.getLength(); i++) {
+            Node node = nodes.item(i);
+            if (node.getNodeType() == Node.ELEMENT_NODE && node.getNodeName().equals(name)) {
+                children.add((Element) node);
+            }
+        }
+        return children;
+    }
+
+    private static String childText(Element parent, String name) {
+        List<Element> children = children(parent, name);
+        return children.isEmpty() ? null : children.get(0).getTextContent().trim();
+    }
+
+    private static void setChildText(Element parent, String name, String text) {
+        children(parent, name).get(0).setTextContent(text);
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: ScenarioGenerator <friendly footmen> <enemy footmen> [blocks|scatter|surround] [seed] [directory]");
+            System.exit(1);
+        }
+        Layout layout = args.length >= 3 ? Layout.valueOf(args[2].toUpperCase(Locale.ROOT)) : Layout.BLOCKS;
+        long seed = args.length >= 4 ? Long.parseLong(args[3]) : 12345;
+        Path directory = args.length >= 5 ? Paths.get(args[4]) : Paths.get("data");
+
+        ScenarioGenerator generator = new ScenarioGenerator(Integer.parseInt(args[0]), Integer.parseInt(args[1]), layout, seed);
+        Path map = generator.write(directory);
+        System.out.println("Wrote " + map + " and " + directory.resolve(generator.getName() + "Config.xml"));
+    }
+}
@@ -0,0 +1,95 @@
+package edu.cwru.sepia.agent;
+
+import edu.cwru.sepia.action.ActionFeedback;
+import edu.cwru.sepia.action.ActionResult;
+import edu.cwru.sepia.environment.model.history.DamageLog;
+import edu.cwru.sepia.environment.model.history.DeathLog;
+import edu.cwru.sepia.environment.model.history.History;
+import edu.cwru.sepia.environment.model.state.State;
+import edu.cwru.sepia.environment.model.state.Unit;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Adapts SEPIA's state and history views to a {@link BattleView}. One instance is reused for every turn.
+ */
+public class SepiaBattleView implements BattleView {
+
+    private State.StateView stateView;
+    private History.HistoryView historyView;
+
+    /**
+     * Points the adapter at the views of the current turn.
+     *
+     * @return This adapter
+     */
+    public SepiaBattleView update(State.StateView stateView, History.HistoryView historyView) {
+        this.stateView = stateView;
+        this.historyView = historyView;
+        return this;
+    }
+
+    @Override
+    public int getTurnNumber() {
+        return stateView.getTurnNumber();
+    }
+
+    @Override
+    public List<Integer> getUnitIds(int player) {
+        return stateView.getUnitIds(player);
+    }
+
+    @Override
+    public List<Integer> getAllUnitIds() {
+        return stateView.getAllUnitIds();
+    }
+
+    @Override
+    public String getUnitTypeName(int unitId) {
+        return stateView.getUnit(unitId).getTemplateView().getName();
+    }
+
+    @Override
+    public int getXPosition(int unitId) {
+        return stateView.getUnit(unitId).getXPosition();
+    }
+
+    @Override
+    public int getYPosition(int unitId) {
+        return stateView.getUnit(unitId).getYPosition();
+    }
+
+    @Override
+    public int getHP(int unitId) {
+        return stateView.getUnit(unitId).getHP();
+    }
+
+    @Override
+    public void copyUnits(int player, UnitSnapshot snapshot) {
+        for (Integer unitId : stateView.getUnitIds(player)) {
+            // One lookup per unit instead of one per field
+            Unit.UnitView unit = stateView.getUnit(unitId);
+            snapshot.add(unitId, player, unit.getXPosition(), unit.getYPosition(), unit.getHP(), unit.getTemplateView().getName());
+        }
+    }
+
+    @Override
+    public void reportEvents(int turn, int playernum, CombatEventSummary summary) {
+        for (DeathLog dLog : historyView.getDeathLogs(turn)) {
+            summary.recordDeath(dLog.getDeadUnitID(), dLog.getController());
+        }
+        for (DamageLog dLog : historyView.getDamageLogs(turn)) {
+            summary.recordDamage(dLog.getAttackerID(), dLog.getDefenderID(), dLog.getDefenderController(), dLog.getDamage());
+        }
+        for (Integer unitId : historyView.getCommandsIssued(playernum, turn).keySet()) {
+            summary.recordCommand(unitId);
+        }
+        // Anything but INCOMPLETE means the unit is no longer carrying out its order, including when it may be stuck
+        for (Map.Entry<Integer, ActionResult> feedback : historyView.getCommandFeedback(playernum, turn).entrySet()) {
+            if (feedback.getValue().getFeedback() != ActionFeedback.INCOMPLETE) {
+                summary.recordActionEnded(feedback.getKey());
+            }
+        }
+    }
+}
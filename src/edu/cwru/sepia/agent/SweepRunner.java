@@ -0,0 +1,309 @@
+package edu.cwru.sepia.agent;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Tunes gamma, learningRate and epsilon in one JVM. Every configuration trains its own agent from the same
+ * initial weights on its own simulator, and the configurations are trained concurrently on a thread pool. The
+ * scenario is parsed once and shared, simulators only ever read it.
+ * <p>
+ * The configurations are the full grid of the values given, or with samples=N, N of them drawn at random from
+ * that grid. The report ranks them by the average test reward of their last evaluation block, and shows each
+ * one's learning curve and wall clock time. A block is 15 episodes, so episodes should be a multiple of 15.
+ * <p>
+ * With backgroundEvaluation=true the agents only play the 10 learning episodes of each block. The 5 test
+ * episodes are played on a separate pool against a copy of the weights, see {@link BackgroundEvaluator}, which
+ * takes a third of the episodes off each configuration's own thread.
+ * <p>
+ * Usage: SweepRunner &lt;map or config xml&gt; &lt;episodes&gt; [name=value ...]
+ * <ul>
+ * <li>gamma, learningRate, epsilon: comma separated values to try. The agent's default when not given.</li>
+ * <li>samples: number of random configurations to train instead of the full grid.</li>
+ * <li>threads: configurations trained at once, the number of cores by default.</li>
+ * <li>seed: seed of the initial weights, the agents, the simulators and the sampling, 12345 by default.</li>
+ * <li>backgroundEvaluation: true to test in the background, evaluationThreads=N sizes its pool, by default the
+ * same as threads.</li>
+ * </ul>
+ * Any other option is passed on to every agent.
+ */
+public class SweepRunner {
+
+    /**
+     * The options a sweep can vary.
+     */
+    public static final List<String> HYPERPARAMETERS = Arrays.asList("gamma", "learningRate", "epsilon");
+
+    /**
+     * One point of the sweep, as agent options.
+     */
+    public static class Configuration {
+        public final Map<String, String> values;
+
+        public Configuration(Map<String, String> values) {
+            this.values = Collections.unmodifiableMap(new LinkedHashMap<>(values));
+        }
+
+        String[] toOptions() {
+            List<String> options = new ArrayList<>();
+            for (Map.Entry<String, String> value : values.entrySet()) {
+                options.add(value.getKey() + "=" + value.getValue());
+            }
+            return options.toArray(new String[0]);
+        }
+
+        @Override
+        public String toString() {
+            return values.isEmpty() ? "(defaults)" : String.join(" ", toOptions());
+        }
+    }
+
+    /**
+     * What one configuration learned.
+     */
+    public static class Result {
+        public final Configuration configuration;
+        //Average test reward after each evaluation block
+        public final List<Double> learningCurve;
+        public final long nanos;
+
+        Result(Configuration configuration, List<Double> learningCurve, long nanos) {
+            this.configuration = configuration;
+            this.learningCurve = learningCurve;
+            this.nanos = nanos;
+        }
+
+        /**
+         * @return Average test reward of the last evaluation block, NaN if no block was finished
+         */
+        public double getFinalReward() {
+            return learningCurve.isEmpty() ? Double.NaN : learningCurve.get(learningCurve.size() - 1);
+        }
+    }
+
+    private final BattleScenario scenario;
+    private final int episodes;
+    private final long seed;
+    private final String[] agentOptions;
+
+    /**
+     * @param scenario     The battle every configuration trains on
+     * @param episodes     Episodes per configuration
+     * @param seed         Seed of the initial weights, the agents and the simulators
+     * @param agentOptions name=value options for every agent
+     */
+    public SweepRunner(BattleScenario scenario, int episodes, long seed, String... agentOptions) {
+        this.scenario = scenario;
+        this.episodes = episodes;
+        this.seed = seed;
+        this.agentOptions = agentOptions;
+    }
+
+    /**
+     * Every combination of the given values.
+     *
+     * @param values Values to try per hyperparameter, in the order the combinations should vary
+     */
+    public static List<Configuration> grid(Map<String, List<String>> values) {
+        List<Map<String, String>> points = new ArrayList<>();
+        points.add(new LinkedHashMap<>());
+        for (Map.Entry<String, List<String>> parameter : values.entrySet()) {
+            List<Map<String, String>> extended = new ArrayList<>();
+            for (Map<String, String> point : points) {
+                for (String value : parameter.getValue()) {
+                    Map<String, String> next = new LinkedHashMap<>(point);
+                    next.put(parameter.getKey(), value);
+                    extended.add(next);
+                }
+            }
+            points = extended;
+        }
+        List<Configuration> configurations = new ArrayList<>();
+        for (Map<String, String> point : points) {
+            configurations.add(new Configuration(point));
+        }
+        return configurations;
+    }
+
+    /**
+     * Draws configurations from a grid without replacement.
+     *
+     * @param grid    Configurations to draw from
+     * @param samples How many to draw, all of them if the grid is smaller
+     * @param seed    The same seed always draws the same configurations
+     */
+    public static List<Configuration> sample(List<Configuration> grid, int samples, long seed) {
+        List<Configuration> shuffled = new ArrayList<>(grid);
+        Collections.shuffle(shuffled, new Random(seed));
+        return new ArrayList<>(shuffled.subList(0, Math.min(samples, shuffled.size())));
+    }
+
+    /**
+     * Trains every configuration.
+     *
+     * @param configurations What to train
+     * @param threads        Configurations trained at once
+     * @return A result per configuration, in the order given
+     */
+    public List<Result> run(List<Configuration> configurations, int threads) throws InterruptedException {
+        return run(configurations, threads, 0);
+    }
+
+    /**
+     * Trains every configuration, testing in the background.
+     *
+     * @param configurations    What to train
+     * @param threads           Configurations trained at once
+     * @param evaluationThreads Test blocks played at once, 0 to play them in-line instead
+     * @return A result per configuration, in the order given
+     */
+    public List<Result> run(List<Configuration> configurations, int threads, int evaluationThreads) throws InterruptedException {
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        BackgroundEvaluator evaluator = evaluationThreads > 0
+                ? new BackgroundEvaluator(() -> new CombatSimulator(scenario, seed, CombatSimulator.DEFAULT_TURN_LIMIT), evaluationThreads)
+                : null;
+        try {
+            List<Future<Result>> futures = new ArrayList<>();
+            for (Configuration configuration : configurations) {
+                futures.add(pool.submit(() -> train(configuration, evaluator)));
+            }
+            List<Result> results = new ArrayList<>();
+            for (Future<Result> future : futures) {
+                results.add(future.get());
+            }
+            return results;
+        } catch (ExecutionException ex) {
+            throw new IllegalStateException("Sweep configuration failed", ex.getCause());
+        } finally {
+            pool.shutdownNow();
+            if (evaluator != null) {
+                evaluator.close();
+            }
+        }
+    }
+
+    /**
+     * Trains one configuration on the calling thread.
+     *
+     * @param configuration What to train
+     * @param evaluator     Plays the test episodes, null to play them in-line
+     */
+    public Result train(Configuration configuration, BackgroundEvaluator evaluator) {
+        // Dozens of agents announcing every episode would bury the report, the options can still turn it back on
+        List<String> options = new ArrayList<>();
+        options.add("logLevel=WARN");
+        options.addAll(Arrays.asList(agentOptions));
+        options.addAll(Arrays.asList(configuration.toOptions()));
+        String[] optionArray = options.toArray(new String[0]);
+
+        double[] weights = ParallelTrainer.initialWeights(seed, FeaturePipeline.fromArguments(optionArray).size());
+        RLAgent agent = new RLAgent(0, episodes, weights, WeightUpdater.HOGWILD, seed, optionArray);
+        CombatSimulator simulator = new CombatSimulator(scenario, seed, CombatSimulator.DEFAULT_TURN_LIMIT);
+        // In the background the test episodes of each block are not played here
+        int played = episodes;
+        if (evaluator != null) {
+            agent.evaluateInBackground(evaluator);
+            played = episodes / 15 * 10 + Math.min(episodes % 15, 10);
+        }
+        long start = System.nanoTime();
+        try {
+            for (int episode = 0; episode < played; episode++) {
+                simulator.runEpisode(agent);
+            }
+            if (evaluator != null) {
+                agent.finishBackgroundEvaluation();
+            }
+        } finally {
+            agent.close();
+        }
+        long nanos = System.nanoTime() - start;
+        // The first entry is the 0 printTestData starts its table with
+        List<Double> curve = agent.averagedRewards.subList(1, agent.averagedRewards.size());
+        return new Result(configuration, new ArrayList<>(curve), nanos);
+    }
+
+    /**
+     * Prints the results best first, by the reward of their last evaluation block.
+     */
+    public static void report(List<Result> results, PrintStream out) {
+        List<Result> ranked = new ArrayList<>(results);
+        // Configurations that never finished a block go last
+        ranked.sort(Comparator.comparingDouble((Result result) -> Double.isNaN(result.getFinalReward())
+                ? Double.NEGATIVE_INFINITY : result.getFinalReward()).reversed());
+
+        out.println("Rank  Final reward  Seconds   Configuration                                     Learning curve");
+        out.println("----  ------------  -------   ------------------------------------------------  --------------");
+        for (int i = 0; i < ranked.size(); i++) {
+            Result result = ranked.get(i);
+            StringBuilder curve = new StringBuilder();
+            for (double reward : result.learningCurve) {
+                curve.append(String.format("%.2f ", reward));
+            }
+            out.println(String.format("%-6d%-14.2f%-10.1f%-50s%s", i + 1, result.getFinalReward(), result.nanos / 1e9,
+                    result.configuration, curve.toString().trim()));
+        }
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length < 2) {
+            System.err.println("Usage: SweepRunner <map or config xml> <episodes> [name=value ...]");
+            System.exit(1);
+        }
+        BattleScenario scenario = BattleScenario.cached(Paths.get(args[0]));
+        int episodes = Integer.parseInt(args[1]);
+
+        Map<String, List<String>> values = new LinkedHashMap<>();
+        int samples = 0;
+        int threads = Runtime.getRuntime().availableProcessors();
+        boolean backgroundEvaluation = false;
+        int evaluationThreads = -1;
+        long seed = 12345;
+        List<String> agentOptions = new ArrayList<>();
+        for (int i = 2; i < args.length; i++) {
+            String name = args[i].contains("=") ? args[i].substring(0, args[i].indexOf('=')) : args[i];
+            String value = args[i].substring(args[i].indexOf('=') + 1);
+            if (HYPERPARAMETERS.contains(name)) {
+                values.put(name, Arrays.asList(value.split(",")));
+            } else if (name.equals("samples")) {
+                samples = Integer.parseInt(value);
+            } else if (name.equals("threads")) {
+                threads = Integer.parseInt(value);
+            } else if (name.equals("backgroundEvaluation")) {
+                backgroundEvaluation = Boolean.parseBoolean(value);
+            } else if (name.equals("evaluationThreads")) {
+                evaluationThreads = Integer.parseInt(value);
+            } else if (name.equals("seed")) {
+                seed = Long.parseLong(value);
+            } else {
+                agentOptions.add(args[i]);
+            }
+        }
+
+        List<Configuration> configurations = grid(values);
+        if (samples > 0) {
+            configurations = sample(configurations, samples, seed);
+        }
+        SweepRunner sweep = new SweepRunner(scenario, episodes, seed, agentOptions.toArray(new String[0]));
+        long start = System.nanoTime();
+        if (evaluationThreads < 0) {
+            evaluationThreads = threads;
+        }
+        List<Result> results = sweep.run(configurations, threads, backgroundEvaluation ? evaluationThreads : 0);
+        System.out.println(String.format("Trained %d configurations of %d episodes on %d threads in %.1f s",
+                configurations.size(), episodes, threads, (System.nanoTime() - start) / 1e9));
+        report(results, System.out);
+    }
+}
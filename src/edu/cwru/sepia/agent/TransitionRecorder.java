@@ -0,0 +1,145 @@
+package edu.cwru.sepia.agent;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Appends every transition the agent learns from to a compact binary trace, so the weights can be fitted
+ * again later with other hyperparameters without playing a single game, see {@link OfflineTrainer}.
+ * <p>
+ * Records are packed into a direct buffer and written through a FileChannel when it fills up, so the game
+ * thread only touches the disk once every few hundred transitions.
+ * <p>
+ * File layout, big endian: magic, version, feature count, each feature name as a length and UTF-8 bytes, then
+ * fixed size records of episode, turn, unit ID, reward, the best Q-value of the next state when it was
+ * recorded, and the features of the action taken.
+ */
+public class TransitionRecorder {
+
+    static final int MAGIC = 0x524C5452; // "RLTR"
+    static final int VERSION = 1;
+
+    //Episode, turn and unit, then reward and next Q
+    static final int RECORD_HEADER_BYTES = 3 * Integer.BYTES + 2 * Double.BYTES;
+
+    private final Path path;
+    private final String[] featureNames;
+    private final ByteBuffer buffer;
+    private FileChannel channel;
+    private boolean failed;
+    private long recordCount;
+
+    /**
+     * @param path         File to write, replaced if it exists
+     * @param featureNames Feature of each entry of a record's feature vector
+     * @param bufferBytes  Size of the write buffer
+     */
+    public TransitionRecorder(Path path, String[] featureNames, int bufferBytes) {
+        this.path = path;
+        this.featureNames = featureNames.clone();
+        this.buffer = ByteBuffer.allocateDirect(Math.max(bufferBytes, recordBytes(featureNames.length)));
+    }
+
+    /**
+     * @return Size of one record with this many features
+     */
+    static int recordBytes(int featureCount) {
+        return RECORD_HEADER_BYTES + featureCount * Double.BYTES;
+    }
+
+    /**
+     * Adds a transition.
+     *
+     * @param episode  Episode it happened in
+     * @param turn     Turn the agent learned from it on
+     * @param unitId   Footman it belongs to
+     * @param reward   Reward the agent learned from
+     * @param nextQ    Best Q-value of the next state, as the agent saw it
+     * @param features Features of the action taken
+     */
+    public void record(int episode, int turn, int unitId, double reward, double nextQ, double[] features) {
+        if (failed) {
+            return;
+        }
+        if (buffer.remaining() < recordBytes(features.length)) {
+            flush();
+        }
+        buffer.putInt(episode).putInt(turn).putInt(unitId).putDouble(reward).putDouble(nextQ);
+        for (double feature : features) {
+            buffer.putDouble(feature);
+        }
+        recordCount++;
+    }
+
+    /**
+     * Writes out whatever is buffered. Nothing is created until there is something to write.
+     */
+    public void flush() {
+        if (failed || (channel == null && buffer.position() == 0)) {
+            return;
+        }
+        try {
+            if (channel == null) {
+                open();
+            }
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        } catch (IOException ex) {
+            // Recording is optional, the run goes on without it
+            System.err.println("Failed to write transition trace, recording stopped. Reason: " + ex.getMessage());
+            failed = true;
+        } finally {
+            buffer.clear();
+        }
+    }
+
+    public void close() {
+        flush();
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.close();
+        } catch (IOException ex) {
+            System.err.println("Failed to close transition trace. Reason: " + ex.getMessage());
+        }
+        channel = null;
+    }
+
+    /**
+     * @return Transitions recorded so far
+     */
+    public long getRecordCount() {
+        return recordCount;
+    }
+
+    private void open() throws IOException {
+        if (path.toAbsolutePath().getParent() != null) {
+            Files.createDirectories(path.toAbsolutePath().getParent());
+        }
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+
+        byte[][] names = new byte[featureNames.length][];
+        int headerBytes = 3 * Integer.BYTES;
+        for (int i = 0; i < names.length; i++) {
+            names[i] = featureNames[i].getBytes(StandardCharsets.UTF_8);
+            headerBytes += Integer.BYTES + names[i].length;
+        }
+        ByteBuffer header = ByteBuffer.allocate(headerBytes);
+        header.putInt(MAGIC).putInt(VERSION).putInt(names.length);
+        for (byte[] name : names) {
+            header.putInt(name.length).put(name);
+        }
+        header.flip();
+        while (header.hasRemaining()) {
+            channel.write(header);
+        }
+    }
+}
@@ -0,0 +1,218 @@
+package edu.cwru.sepia.agent;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Uniform grid over unit positions, used to find the enemies closest to a footman without looking at all of
+ * them. The map is cut into square cells and every cell keeps a linked list of the units in it, stored in
+ * arrays indexed by unit ID.
+ * <p>
+ * The grid is updated incrementally: each turn only units that changed cell are moved, and units that are no
+ * longer in the list given to {@link #update} are removed.
+ * <p>
+ * Distances are Chebyshev distances, the same metric attack range uses, so an enemy in range is always among
+ * the nearest ones.
+ */
+public class UnitGrid {
+
+    private final int cellSize;
+
+    //Cells, row-major. head is the first unit in a cell, -1 when empty.
+    private int columns;
+    private int rows;
+    private int[] head = new int[0];
+
+    //Per unit ID. cellOf is -1 when the unit is not in the grid.
+    private int[] cellOf = new int[0];
+    private int[] next = new int[0];
+    private int[] previous = new int[0];
+    private int[] xOf = new int[0];
+    private int[] yOf = new int[0];
+    private int[] stamps = new int[0];
+    private int epoch;
+
+    //Units currently in the grid
+    private int[] members = new int[0];
+    private int memberCount;
+
+    //Best candidates of the current query, sorted by distance then ID
+    private int[] bestIds = new int[0];
+    private int[] bestDistances = new int[0];
+
+    /**
+     * @param cellSize Width and height of a cell in tiles
+     */
+    public UnitGrid(int cellSize) {
+        this.cellSize = Math.max(1, cellSize);
+    }
+
+    /**
+     * Brings the grid up to date with the current positions.
+     *
+     * @param view  The battle at the current turn
+     * @param units Every unit that should be in the grid, any others are removed
+     */
+    public void update(BattleView view, List<Integer> units) {
+        epoch++;
+        for (int unitId : units) {
+            ensureUnitCapacity(unitId);
+            int x = view.getXPosition(unitId);
+            int y = view.getYPosition(unitId);
+            if (x / cellSize >= columns || y / cellSize >= rows) {
+                growCells(x, y);
+            }
+            int cell = (y / cellSize) * columns + x / cellSize;
+            if (cellOf[unitId] != cell) {
+                if (cellOf[unitId] >= 0) {
+                    unlink(unitId);
+                } else {
+                    members = ensureLength(members, memberCount + 1);
+                    members[memberCount++] = unitId;
+                }
+                link(unitId, cell);
+            }
+            xOf[unitId] = x;
+            yOf[unitId] = y;
+            stamps[unitId] = epoch;
+        }
+
+        // Drop the units that were not listed, they have died
+        int kept = 0;
+        for (int i = 0; i < memberCount; i++) {
+            int unitId = members[i];
+            if (stamps[unitId] == epoch) {
+                members[kept++] = unitId;
+            } else {
+                unlink(unitId);
+                cellOf[unitId] = -1;
+            }
+        }
+        memberCount = kept;
+    }
+
+    /**
+     * Finds the k units nearest to a position. Cells are searched in rings around the position until no unit
+     * further out could be closer than the k-th one found.
+     *
+     * @param x   Column of the position
+     * @param y   Row of the position
+     * @param k   Number of units wanted
+     * @param out Receives the unit IDs, nearest first, ties broken by lower ID. Needs room for k entries.
+     * @return Number of units written, less than k only if the grid holds fewer units
+     */
+    public int nearest(int x, int y, int k, int[] out) {
+        if (bestIds.length < k) {
+            bestIds = new int[k];
+            bestDistances = new int[k];
+        }
+        int found = 0;
+        int centerColumn = Math.min(x / cellSize, columns - 1);
+        int centerRow = Math.min(y / cellSize, rows - 1);
+        int maxRadius = Math.max(columns, rows);
+
+        for (int radius = 0; radius <= maxRadius; radius++) {
+            for (int row = centerRow - radius; row <= centerRow + radius; row++) {
+                if (row < 0 || row >= rows) {
+                    continue;
+                }
+                // Only the border of the ring, the inside was searched already
+                boolean edgeRow = row == centerRow - radius || row == centerRow + radius;
+                int step = edgeRow ? 1 : Math.max(1, 2 * radius);
+                for (int column = centerColumn - radius; column <= centerColumn + radius; column += step) {
+                    if (column < 0 || column >= columns) {
+                        continue;
+                    }
+                    for (int unitId = head[row * columns + column]; unitId >= 0; unitId = next[unitId]) {
+                        int distance = Math.max(Math.abs(xOf[unitId] - x), Math.abs(yOf[unitId] - y));
+                        found = offer(unitId, distance, found, k);
+                    }
+                }
+            }
+            // Anything in the next ring is at least radius * cellSize + 1 tiles away
+            if (found == k && bestDistances[k - 1] <= radius * cellSize) {
+                break;
+            }
+        }
+
+        System.arraycopy(bestIds, 0, out, 0, found);
+        return found;
+    }
+
+    /**
+     * @return Number of units in the grid
+     */
+    public int size() {
+        return memberCount;
+    }
+
+    //Insertion into the sorted candidate list, k is small
+    private int offer(int unitId, int distance, int found, int k) {
+        int position = found;
+        while (position > 0 && (bestDistances[position - 1] > distance
+                || (bestDistances[position - 1] == distance && bestIds[position - 1] > unitId))) {
+            position--;
+        }
+        if (position >= k) {
+            return found;
+        }
+        int last = Math.min(found, k - 1);
+        System.arraycopy(bestIds, position, bestIds, position + 1, last - position);
+        System.arraycopy(bestDistances, position, bestDistances, position + 1, last - position);
+        bestIds[position] = unitId;
+        bestDistances[position] = distance;
+        return Math.min(found + 1, k);
+    }
+
+    private void link(int unitId, int cell) {
+        cellOf[unitId] = cell;
+        previous[unitId] = -1;
+        next[unitId] = head[cell];
+        if (head[cell] >= 0) {
+            previous[head[cell]] = unitId;
+        }
+        head[cell] = unitId;
+    }
+
+    private void unlink(int unitId) {
+        if (previous[unitId] >= 0) {
+            next[previous[unitId]] = next[unitId];
+        } else {
+            head[cellOf[unitId]] = next[unitId];
+        }
+        if (next[unitId] >= 0) {
+            previous[next[unitId]] = previous[unitId];
+        }
+    }
+
+    //Makes the grid big enough for the position and puts every unit back in its cell
+    private void growCells(int x, int y) {
+        columns = Math.max(columns, x / cellSize + 1);
+        rows = Math.max(rows, y / cellSize + 1);
+        head = new int[columns * rows];
+        Arrays.fill(head, -1);
+        for (int i = 0; i < memberCount; i++) {
+            int unitId = members[i];
+            link(unitId, (yOf[unitId] / cellSize) * columns + xOf[unitId] / cellSize);
+        }
+    }
+
+    private void ensureUnitCapacity(int unitId) {
+        if (unitId < cellOf.length) {
+            return;
+        }
+        int oldLength = cellOf.length;
+        int length = Math.max(unitId + 1, oldLength * 2);
+        cellOf = Arrays.copyOf(cellOf, length);
+        Arrays.fill(cellOf, oldLength, length, -1);
+        next = Arrays.copyOf(next, length);
+        previous = Arrays.copyOf(previous, length);
+        xOf = Arrays.copyOf(xOf, length);
+        yOf = Arrays.copyOf(yOf, length);
+        stamps = Arrays.copyOf(stamps, length);
+    }
+
+    private static int[] ensureLength(int[] array, int length) {
+        return array.length >= length ? array : Arrays.copyOf(array, Math.max(length, array.length * 2));
+    }
+}
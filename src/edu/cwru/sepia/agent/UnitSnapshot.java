@@ -0,0 +1,253 @@
+package edu.cwru.sepia.agent;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Copy of the living units of a turn in parallel primitive arrays. The agent captures one at the start of a
+ * turn and reads everything from it, so a unit's position and health cost an array read instead of a lookup
+ * in the game state, however many (footman, enemy) pairs look at them.
+ * <p>
+ * Units are stored in dense slots in the order they were captured, and slotOf maps a unit ID to its slot.
+ * Each player also has a bitset of the slots holding its units.
+ * <p>
+ * The snapshot is itself a {@link BattleView}. Events are still read from the view it was captured from.
+ * <p>
+ * Whether a unit is a footman is decided once per template name for the whole JVM, instead of comparing
+ * names every time an episode sorts out its units.
+ */
+public class UnitSnapshot implements BattleView {
+
+    //Template name -> is it a footman, shared by every snapshot
+    private static final Map<String, Boolean> FOOTMAN_TEMPLATES = new ConcurrentHashMap<>();
+
+    private BattleView source;
+    private int turn;
+
+    //Per slot
+    private int size;
+    private int[] unitIds = new int[0];
+    private int[] players = new int[0];
+    private int[] xs = new int[0];
+    private int[] ys = new int[0];
+    private int[] hps = new int[0];
+    private String[] typeNames = new String[0];
+    private boolean[] footmen = new boolean[0];
+
+    //Slot of each unit ID, -1 for units that are not in the snapshot
+    private int[] slotOf = new int[0];
+
+    //Slots of each player's units, by player number
+    private long[][] playerSlots = new long[0][];
+
+    //Built the first time they are asked for on a turn
+    private final List<List<Integer>> unitIdLists = new ArrayList<>();
+    private final List<Integer> allUnitIds = new ArrayList<>();
+    private boolean listsBuilt;
+
+    /**
+     * Copies the living units of both sides.
+     *
+     * @param source         The battle at the current turn
+     * @param playernum      Our player
+     * @param enemyPlayernum The enemy player
+     * @return This snapshot
+     */
+    public UnitSnapshot capture(BattleView source, int playernum, int enemyPlayernum) {
+        this.source = source;
+        this.turn = source.getTurnNumber();
+        for (int i = 0; i < size; i++) {
+            slotOf[unitIds[i]] = -1;
+        }
+        size = 0;
+        listsBuilt = false;
+        for (long[] slots : playerSlots) {
+            Arrays.fill(slots, 0L);
+        }
+        source.copyUnits(playernum, this);
+        source.copyUnits(enemyPlayernum, this);
+        return this;
+    }
+
+    /**
+     * Adds a unit. Called by {@link BattleView#copyUnits} while capturing.
+     */
+    public void add(int unitId, int player, int x, int y, int hp, String typeName) {
+        if (size == unitIds.length) {
+            int length = Math.max(16, size * 2);
+            unitIds = Arrays.copyOf(unitIds, length);
+            players = Arrays.copyOf(players, length);
+            xs = Arrays.copyOf(xs, length);
+            ys = Arrays.copyOf(ys, length);
+            hps = Arrays.copyOf(hps, length);
+            typeNames = Arrays.copyOf(typeNames, length);
+            footmen = Arrays.copyOf(footmen, length);
+        }
+        if (unitId >= slotOf.length) {
+            int oldLength = slotOf.length;
+            slotOf = Arrays.copyOf(slotOf, Math.max(unitId + 1, oldLength * 2));
+            Arrays.fill(slotOf, oldLength, slotOf.length, -1);
+        }
+        if (player >= playerSlots.length) {
+            playerSlots = Arrays.copyOf(playerSlots, player + 1);
+        }
+        for (int p = 0; p < playerSlots.length; p++) {
+            if (playerSlots[p] == null || playerSlots[p].length * 64 < unitIds.length) {
+                playerSlots[p] = playerSlots[p] == null ? new long[(unitIds.length + 63) / 64]
+                        : Arrays.copyOf(playerSlots[p], (unitIds.length + 63) / 64);
+            }
+        }
+
+        int slot = size++;
+        unitIds[slot] = unitId;
+        players[slot] = player;
+        xs[slot] = x;
+        ys[slot] = y;
+        hps[slot] = hp;
+        typeNames[slot] = typeName;
+        footmen[slot] = isFootmanTemplate(typeName);
+        slotOf[unitId] = slot;
+        playerSlots[player][slot >>> 6] |= 1L << slot;
+    }
+
+    /**
+     * @return True if units of the template are footmen, whatever the case of the name
+     */
+    public static boolean isFootmanTemplate(String templateName) {
+        return FOOTMAN_TEMPLATES.computeIfAbsent(templateName, name -> name.toLowerCase(Locale.ROOT).equals("footman"));
+    }
+
+    /**
+     * @return Number of units captured
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return Slot of the unit, -1 if it was not captured
+     */
+    public int slotOf(int unitId) {
+        return unitId >= 0 && unitId < slotOf.length ? slotOf[unitId] : -1;
+    }
+
+    public int getUnitId(int slot) {
+        return unitIds[slot];
+    }
+
+    public int getPlayer(int slot) {
+        return players[slot];
+    }
+
+    /**
+     * @return True if the unit was alive and belonged to the player this turn
+     */
+    public boolean isAlive(int player, int unitId) {
+        int slot = slotOf(unitId);
+        return slot >= 0 && player < playerSlots.length && (playerSlots[player][slot >>> 6] & (1L << slot)) != 0;
+    }
+
+    /**
+     * @return Number of living units of the player
+     */
+    public int countAlive(int player) {
+        if (player >= playerSlots.length) {
+            return 0;
+        }
+        int count = 0;
+        for (long word : playerSlots[player]) {
+            count += Long.bitCount(word);
+        }
+        return count;
+    }
+
+    /**
+     * @return True if the captured unit is a footman
+     */
+    public boolean isFootman(int unitId) {
+        return footmen[slotOf[unitId]];
+    }
+
+    /**
+     * @return True if the two units are next to each other, attack range for footmen
+     */
+    public boolean inRange(int unitId, int otherId) {
+        int slot = slotOf[unitId];
+        int other = slotOf[otherId];
+        return Math.abs(xs[slot] - xs[other]) <= 1 && Math.abs(ys[slot] - ys[other]) <= 1;
+    }
+
+    @Override
+    public int getTurnNumber() {
+        return turn;
+    }
+
+    @Override
+    public List<Integer> getUnitIds(int player) {
+        buildLists();
+        return player < unitIdLists.size() ? unitIdLists.get(player) : new ArrayList<>();
+    }
+
+    @Override
+    public List<Integer> getAllUnitIds() {
+        buildLists();
+        return allUnitIds;
+    }
+
+    //Lists in capture order, the same order the source gave the units in
+    private void buildLists() {
+        if (listsBuilt) {
+            return;
+        }
+        while (unitIdLists.size() < playerSlots.length) {
+            unitIdLists.add(new ArrayList<>());
+        }
+        for (List<Integer> list : unitIdLists) {
+            list.clear();
+        }
+        allUnitIds.clear();
+        for (int slot = 0; slot < size; slot++) {
+            unitIdLists.get(players[slot]).add(unitIds[slot]);
+            allUnitIds.add(unitIds[slot]);
+        }
+        listsBuilt = true;
+    }
+
+    @Override
+    public String getUnitTypeName(int unitId) {
+        return typeNames[slotOf[unitId]];
+    }
+
+    @Override
+    public int getXPosition(int unitId) {
+        return xs[slotOf[unitId]];
+    }
+
+    @Override
+    public int getYPosition(int unitId) {
+        return ys[slotOf[unitId]];
+    }
+
+    @Override
+    public int getHP(int unitId) {
+        return hps[slotOf[unitId]];
+    }
+
+    @Override
+    public void reportEvents(int turn, int playernum, CombatEventSummary summary) {
+        source.reportEvents(turn, playernum, summary);
+    }
+
+    @Override
+    public void copyUnits(int player, UnitSnapshot snapshot) {
+        for (int slot = 0; slot < size; slot++) {
+            if (players[slot] == player) {
+                snapshot.add(unitIds[slot], player, xs[slot], ys[slot], hps[slot], typeNames[slot]);
+            }
+        }
+    }
+}
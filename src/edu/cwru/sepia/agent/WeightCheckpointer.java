@@ -0,0 +1,338 @@
+package edu.cwru.sepia.agent;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Writes binary checkpoints of the weights on a background thread so the game thread never waits on disk.
+ * <p>
+ * A checkpoint holds the weights, the episode counter, the state of the agent's random number generator and
+ * the learning curve so far, with the test episodes of the block in progress. That is everything needed to
+ * pick a killed run back up where it stopped. It is written to a temporary
+ * file and then renamed over the old one, so a crash mid write never leaves a corrupt checkpoint behind.
+ * <p>
+ * File layout, big endian: magic, version, episode, RNG state length, RNG state bytes, weight count, weights,
+ * then the name of each weight's feature as a length and UTF-8 bytes, then the {@link HashedFeatures} table:
+ * its bits (0 when there is none), the count of weights that are not 0, their indices and their values. Only
+ * the weights in use are written, so a 2^22 table that has seen a few thousand tiles stays small. Last come
+ * the learning curve as a length (-1 when none was saved) and its values, then the count, mean, sum of squared
+ * differences, min and max of the block's test rewards.
+ * <p>
+ * Version 1 files have no names and are read as the default feature set, version 1 and 2 files have no
+ * hashed table, and files before version 4 have no learning curve.
+ */
+public class WeightCheckpointer {
+
+    private static final int MAGIC = 0x524C434B; // "RLCK"
+    private static final int VERSION = 4;
+
+    /**
+     * Contents of a checkpoint file.
+     */
+    public static class Checkpoint {
+        public final double[] weights;
+        //Feature of each weight, see FeaturePipeline
+        public final String[] featureNames;
+        //Null when the run had no hashed features
+        public final HashedFeatures hashed;
+        public final int episode;
+        public final Random random;
+        //Average test reward of every finished block, null when the checkpoint has no learning curve
+        public final double[] learningCurve;
+        //Test rewards of the block in progress, null along with learningCurve
+        public final RunningStats testRewards;
+
+        Checkpoint(double[] weights, String[] featureNames, int episode, Random random) {
+            this(weights, featureNames, null, episode, random);
+        }
+
+        Checkpoint(double[] weights, String[] featureNames, HashedFeatures hashed, int episode, Random random) {
+            this(weights, featureNames, hashed, episode, random, null, null);
+        }
+
+        Checkpoint(double[] weights, String[] featureNames, HashedFeatures hashed, int episode, Random random,
+                   double[] learningCurve, RunningStats testRewards) {
+            this.weights = weights;
+            this.featureNames = featureNames;
+            this.hashed = hashed;
+            this.episode = episode;
+            this.random = random;
+            this.learningCurve = learningCurve;
+            this.testRewards = testRewards;
+        }
+    }
+
+    private final Path path;
+    private final Path tempPath;
+    private final ExecutorService writer;
+
+    //Latest snapshot not yet written. Older ones are dropped if the writer falls behind.
+    private final AtomicReference<Snapshot> pending = new AtomicReference<>();
+
+    /**
+     * @param path Where the checkpoint is kept
+     */
+    public WeightCheckpointer(Path path) {
+        this.path = path;
+        this.tempPath = path.resolveSibling(path.getFileName() + ".tmp");
+        this.writer = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "weight-checkpointer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Copies the weights and RNG state right away, then encodes and writes them in the background.
+     *
+     * @param weights      Weights to save, copied before returning
+     * @param featureNames Feature of each weight
+     * @param episode      Episode the run would continue with
+     * @param random       Random number generator whose state to save
+     */
+    public void save(double[] weights, String[] featureNames, int episode, Random random) {
+        save(weights, featureNames, null, episode, random);
+    }
+
+    /**
+     * Same as {@link #save(double[], String[], int, Random)} with a hashed feature table.
+     *
+     * @param hashed Hashed weights to save sparsely, or null
+     */
+    public void save(double[] weights, String[] featureNames, HashedFeatures hashed, int episode, Random random) {
+        save(weights, featureNames, hashed, episode, random, null, null);
+    }
+
+    /**
+     * Same as {@link #save(double[], String[], HashedFeatures, int, Random)} with the progress of the run.
+     *
+     * @param learningCurve Average test reward of every finished block, or null
+     * @param testRewards   Test rewards of the block in progress, null along with learningCurve
+     */
+    public void save(double[] weights, String[] featureNames, HashedFeatures hashed, int episode, Random random,
+                     List<Double> learningCurve, RunningStats testRewards) {
+        if (pending.getAndSet(new Snapshot(weights, featureNames, hashed, episode, random, learningCurve, testRewards)) == null) {
+            writer.execute(this::writePending);
+        }
+    }
+
+    /**
+     * Waits for outstanding writes and stops the writer thread.
+     */
+    public void close() {
+        writer.shutdown();
+        try {
+            if (!writer.awaitTermination(1, TimeUnit.MINUTES)) {
+                System.err.println("Timed out waiting for the weight checkpoint to be written.");
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void writePending() {
+        Snapshot snapshot = pending.getAndSet(null);
+        if (snapshot == null) {
+            return;
+        }
+        try {
+            ByteBuffer buffer = snapshot.encode();
+            Files.createDirectories(path.toAbsolutePath().getParent());
+            try (FileChannel channel = FileChannel.open(tempPath, StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                channel.force(false);
+            }
+            Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ex) {
+            System.err.println("Failed to write weight checkpoint. Reason: " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Copy of everything a checkpoint holds, taken on the caller's thread. Only copying happens there, the
+     * writer thread turns it into bytes.
+     */
+    private static class Snapshot {
+        final double[] weights;
+        final String[] featureNames;
+        final int hashedBits;
+        final int[] hashedIndices;
+        final double[] hashedValues;
+        final int episode;
+        final byte[] rngState;
+        final double[] learningCurve;
+        final RunningStats testRewards;
+
+        Snapshot(double[] weights, String[] featureNames, HashedFeatures hashed, int episode, Random random,
+                 List<Double> learningCurve, RunningStats testRewards) {
+            this.weights = weights.clone();
+            this.featureNames = featureNames.clone();
+            this.hashedBits = hashed == null ? 0 : hashed.getBits();
+            // Only the weights ever written to are visited, not the whole table
+            this.hashedIndices = hashed == null ? new int[0] : hashed.nonZeroIndices();
+            this.hashedValues = new double[hashedIndices.length];
+            for (int i = 0; i < hashedIndices.length; i++) {
+                hashedValues[i] = hashed.weights[hashedIndices[i]];
+            }
+            this.episode = episode;
+            this.rngState = serialize(random);
+            if (learningCurve == null) {
+                this.learningCurve = null;
+                this.testRewards = null;
+            } else {
+                this.learningCurve = new double[learningCurve.size()];
+                for (int i = 0; i < this.learningCurve.length; i++) {
+                    this.learningCurve[i] = learningCurve.get(i);
+                }
+                this.testRewards = new RunningStats();
+                this.testRewards.copyFrom(testRewards);
+            }
+        }
+
+        ByteBuffer encode() {
+            byte[][] names = new byte[featureNames.length][];
+            int namesLength = 0;
+            for (int i = 0; i < names.length; i++) {
+                names[i] = featureNames[i].getBytes(StandardCharsets.UTF_8);
+                namesLength += Integer.BYTES + names[i].length;
+            }
+            int curveLength = learningCurve == null ? 0 : learningCurve.length;
+            ByteBuffer buffer = ByteBuffer.allocate(8 * Integer.BYTES + rngState.length + weights.length * Double.BYTES + namesLength
+                    + hashedIndices.length * (Integer.BYTES + Double.BYTES) + curveLength * Double.BYTES
+                    + (learningCurve == null ? 0 : Long.BYTES + 4 * Double.BYTES));
+            buffer.putInt(MAGIC).putInt(VERSION).putInt(episode);
+            buffer.putInt(rngState.length).put(rngState);
+            buffer.putInt(weights.length);
+            for (double weight : weights) {
+                buffer.putDouble(weight);
+            }
+            for (byte[] name : names) {
+                buffer.putInt(name.length).put(name);
+            }
+            buffer.putInt(hashedBits).putInt(hashedIndices.length);
+            for (int index : hashedIndices) {
+                buffer.putInt(index);
+            }
+            for (double value : hashedValues) {
+                buffer.putDouble(value);
+            }
+            buffer.putInt(learningCurve == null ? -1 : curveLength);
+            if (learningCurve != null) {
+                for (double reward : learningCurve) {
+                    buffer.putDouble(reward);
+                }
+                // getMean is NaN for an empty block, while the running mean it restores to is 0
+                buffer.putLong(testRewards.getCount()).putDouble(testRewards.getCount() == 0 ? 0.0 : testRewards.getMean())
+                        .putDouble(testRewards.getSumOfSquaredDifferences()).putDouble(testRewards.getMin()).putDouble(testRewards.getMax());
+            }
+            buffer.flip();
+            return buffer;
+        }
+    }
+
+    /**
+     * Reads a checkpoint by memory mapping the file.
+     *
+     * @param path Checkpoint file
+     * @return The checkpoint, or null if there is none or it can't be read
+     */
+    public static Checkpoint read(Path path) {
+        if (!Files.exists(path)) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            int version = buffer.getInt() == MAGIC ? buffer.getInt() : -1;
+            if (version < 1 || version > VERSION) {
+                System.err.println("Failed to load checkpoint. " + path + " is not a version 1 to " + VERSION + " checkpoint");
+                return null;
+            }
+            int episode = buffer.getInt();
+            byte[] rngState = new byte[buffer.getInt()];
+            buffer.get(rngState);
+            double[] weights = new double[buffer.getInt()];
+            buffer.asDoubleBuffer().get(weights);
+            buffer.position(buffer.position() + weights.length * Double.BYTES);
+
+            String[] featureNames;
+            if (version == 1) {
+                // Written before feature sets could be configured
+                featureNames = FeaturePipeline.DEFAULT_FEATURES.split(",");
+            } else {
+                featureNames = new String[weights.length];
+                for (int i = 0; i < featureNames.length; i++) {
+                    byte[] name = new byte[buffer.getInt()];
+                    buffer.get(name);
+                    featureNames[i] = new String(name, StandardCharsets.UTF_8);
+                }
+            }
+
+            HashedFeatures hashed = null;
+            int hashedBits = version >= 3 ? buffer.getInt() : 0;
+            // The count is written even without a table
+            int hashedCount = version >= 3 ? buffer.getInt() : 0;
+            if (hashedBits > 0) {
+                int[] indices = new int[hashedCount];
+                double[] values = new double[indices.length];
+                buffer.asIntBuffer().get(indices);
+                buffer.position(buffer.position() + indices.length * Integer.BYTES);
+                buffer.asDoubleBuffer().get(values);
+                buffer.position(buffer.position() + values.length * Double.BYTES);
+                hashed = new HashedFeatures(hashedBits);
+                hashed.load(indices, values);
+            }
+
+            double[] learningCurve = null;
+            RunningStats testRewards = null;
+            int curveLength = version >= 4 ? buffer.getInt() : -1;
+            if (curveLength >= 0) {
+                learningCurve = new double[curveLength];
+                buffer.asDoubleBuffer().get(learningCurve);
+                buffer.position(buffer.position() + curveLength * Double.BYTES);
+                testRewards = new RunningStats();
+                testRewards.restore(buffer.getLong(), buffer.getDouble(), buffer.getDouble(), buffer.getDouble(), buffer.getDouble());
+            }
+            return new Checkpoint(weights, featureNames, hashed, episode, deserialize(rngState), learningCurve, testRewards);
+        } catch (IOException | RuntimeException ex) {
+            System.err.println("Failed to load checkpoint. Reason: " + ex.getMessage());
+            return null;
+        }
+    }
+
+    // java.util.Random keeps its seed private, serialization is the only way to capture it exactly
+    private static byte[] serialize(Random random) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(random);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+        return bytes.toByteArray();
+    }
+
+    //Only a bare java.util.Random is accepted, so a planted checkpoint can't make us build any other object
+    private static final ObjectInputFilter RNG_FILTER =
+            ObjectInputFilter.Config.createFilter("maxdepth=1;maxrefs=4;maxbytes=1024;java.util.Random;!*");
+
+    private static Random deserialize(byte[] rngState) throws IOException {
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(rngState))) {
+            in.setObjectInputFilter(RNG_FILTER);
+            return (Random) in.readObject();
+        } catch (ClassNotFoundException ex) {
+            throw new IOException(ex);
+        }
+    }
+}
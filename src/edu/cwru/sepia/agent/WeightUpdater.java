@@ -0,0 +1,73 @@
+package edu.cwru.sepia.agent;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+/**
+ * How a gradient step is written into a weight vector that may be shared between several agents running on
+ * different threads.
+ */
+public enum WeightUpdater {
+
+    /**
+     * Plain reads and writes with no synchronization (Hogwild). Concurrent updates can occasionally overwrite
+     * each other, which SGD tolerates, and in exchange there is no contention at all.
+     */
+    HOGWILD {
+        @Override
+        public void addScaled(double[] weights, double[] features, double scale) {
+            for (int i = 0; i < weights.length; i++) {
+                weights[i] = weights[i] + scale * features[i];
+            }
+        }
+
+        @Override
+        public void add(double[] weights, int index, double delta) {
+            weights[index] = weights[index] + delta;
+        }
+    },
+
+    /**
+     * Every element is updated with a compare-and-set loop so no update is ever lost. Still lock-free.
+     */
+    ATOMIC {
+        @Override
+        public void addScaled(double[] weights, double[] features, double scale) {
+            for (int i = 0; i < weights.length; i++) {
+                double delta = scale * features[i];
+                double current;
+                do {
+                    current = (double) ELEMENTS.getVolatile(weights, i);
+                } while (!ELEMENTS.compareAndSet(weights, i, current, current + delta));
+            }
+        }
+
+        @Override
+        public void add(double[] weights, int index, double delta) {
+            double current;
+            do {
+                current = (double) ELEMENTS.getVolatile(weights, index);
+            } while (!ELEMENTS.compareAndSet(weights, index, current, current + delta));
+        }
+    };
+
+    private static final VarHandle ELEMENTS = MethodHandles.arrayElementVarHandle(double[].class);
+
+    /**
+     * weights += scale * features
+     *
+     * @param weights  Weight vector to update in place
+     * @param features Feature vector of the same length
+     * @param scale    Step size, learning rate times TD error
+     */
+    public abstract void addScaled(double[] weights, double[] features, double scale);
+
+    /**
+     * weights[index] += delta, for sparse features that only touch a few weights
+     *
+     * @param weights Weight vector to update in place
+     * @param index   Weight to update
+     * @param delta   Amount to add
+     */
+    public abstract void add(double[] weights, int index, double delta);
+}